@@ -0,0 +1,56 @@
+package net.kettlemc.kcommon.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Creates data handlers backed by an in-memory H2 database in MariaDB mode, so benchmarks run without a database server
+ */
+public final class BenchmarkDatabase {
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Creates a data handler using a new in-memory database, the handler still has to be configured and initialized
+     *
+     * @return the data handler
+     */
+    public static HibernateDataHandler<BenchmarkEntity> handler() {
+        return new HibernateDataHandler<>(BenchmarkEntity.class, BenchmarkEntity::new, "", "", "", "sa", "")
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MariaDB;DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.connection.driver_class", "org.h2.Driver")
+                .setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect")
+                .setProperty("hibernate.connection.provider_class", "org.hibernate.hikaricp.internal.HikariCPConnectionProvider")
+                .setProperty("hibernate.hikari.leakDetectionThreshold", "0");
+    }
+
+    /**
+     * Creates the ids used by the benchmarks
+     *
+     * @param amount the amount of ids
+     * @return the ids
+     */
+    public static String[] ids(int amount) {
+        String[] ids = new String[amount];
+        for (int i = 0; i < amount; i++) {
+            ids[i] = new UUID(0, i).toString();
+        }
+        return ids;
+    }
+
+    /**
+     * Saves an entity for every id
+     *
+     * @param handler the initialized data handler
+     * @param ids     the ids of the entities
+     */
+    public static void fill(DataHandler<BenchmarkEntity> handler, String[] ids) {
+        List<BenchmarkEntity> entities = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            entities.add(new BenchmarkEntity(id));
+        }
+        handler.saveMany(entities).join();
+    }
+}
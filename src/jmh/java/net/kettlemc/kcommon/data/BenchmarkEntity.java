@@ -0,0 +1,40 @@
+package net.kettlemc.kcommon.data;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A small entity similar to player stats, used by the benchmarks
+ */
+@Entity(name = "benchmark_entity")
+public class BenchmarkEntity {
+
+    @Id
+    private String uuid;
+    private int score;
+    private String label;
+
+    public BenchmarkEntity() {
+    }
+
+    public BenchmarkEntity(String uuid) {
+        this.uuid = uuid;
+        this.label = "entity-" + uuid;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public void setScore(int score) {
+        this.score = score;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,87 @@
+package net.kettlemc.kcommon.data;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures single saves and loads, a mixed read/write workload and saves from many threads
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataHandlerBenchmark {
+
+    private static final int ENTITIES = 10_000;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    @Param({"1", "50"})
+    public int batchSize;
+
+    private HibernateDataHandler<BenchmarkEntity> handler;
+    private BenchmarkEntity[] entities;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.handler = BenchmarkDatabase.handler().setWorkerThreads(this.workers).setBatchSize(this.batchSize);
+        if (!this.handler.initialize()) {
+            throw new IllegalStateException("Could not initialize data handler");
+        }
+
+        String[] ids = BenchmarkDatabase.ids(ENTITIES);
+        BenchmarkDatabase.fill(this.handler, ids);
+        this.entities = new BenchmarkEntity[ENTITIES];
+        for (int i = 0; i < ENTITIES; i++) {
+            this.entities[i] = this.handler.load(ids[i], false).join();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.handler.close();
+    }
+
+    @Benchmark
+    public BenchmarkEntity save() {
+        BenchmarkEntity entity = randomEntity();
+        entity.setScore(entity.getScore() + 1);
+        return this.handler.save(entity).join();
+    }
+
+    @Benchmark
+    public BenchmarkEntity load() {
+        return this.handler.load(randomEntity().getUuid(), false).join();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public BenchmarkEntity mixedLoad() {
+        return load();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public BenchmarkEntity mixedSave() {
+        return save();
+    }
+
+    @Benchmark
+    @Threads(16)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public BenchmarkEntity contendedSave() {
+        return save();
+    }
+
+    private BenchmarkEntity randomEntity() {
+        return this.entities[ThreadLocalRandom.current().nextInt(ENTITIES)];
+    }
+}
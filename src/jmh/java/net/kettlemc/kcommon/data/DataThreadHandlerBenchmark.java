@@ -0,0 +1,55 @@
+package net.kettlemc.kcommon.data;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the queue of the DataThreadHandler with many producer threads and no database
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(16)
+public class DataThreadHandlerBenchmark {
+
+    private static final int CAPACITY = 10_000;
+
+    @Param({"1", "4", "16"})
+    public int workers;
+
+    private final LongAdder executed = new LongAdder();
+    private DataThreadHandler handler;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // The capacity makes producers wait for the workers instead of growing the queue without bounds
+        this.handler = new DataThreadHandler(this.workers);
+        this.handler.setCapacity(CAPACITY, DataThreadHandler.OverloadPolicy.BLOCK);
+        this.handler.init();
+        this.keys = BenchmarkDatabase.ids(1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.handler.shutdown();
+    }
+
+    @Benchmark
+    public void queueKeyed() {
+        this.handler.queue(this.keys[ThreadLocalRandom.current().nextInt(this.keys.length)], this.executed::increment);
+    }
+
+    @Benchmark
+    public void queueWithPriority() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        DataThreadHandler.Priority priority = DataThreadHandler.Priority.values()[random.nextInt(3)];
+        this.handler.queue(this.keys[random.nextInt(this.keys.length)], priority, this.executed::increment);
+    }
+}
@@ -0,0 +1,47 @@
+package net.kettlemc.kcommon.data;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares loading a large table at once with streaming it in chunks
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadAllBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private HibernateDataHandler<BenchmarkEntity> handler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.handler = BenchmarkDatabase.handler().setBatchSize(500);
+        if (!this.handler.initialize()) {
+            throw new IllegalStateException("Could not initialize data handler");
+        }
+        BenchmarkDatabase.fill(this.handler, BenchmarkDatabase.ids(this.rows));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.handler.close();
+    }
+
+    @Benchmark
+    public void loadAll(Blackhole blackhole) {
+        this.handler.loadAll().join().forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public long streamAll(Blackhole blackhole) {
+        return this.handler.streamAll(1000, chunk -> chunk.forEach(blackhole::consume)).join();
+    }
+}
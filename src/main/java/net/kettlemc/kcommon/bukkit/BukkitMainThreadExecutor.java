@@ -0,0 +1,62 @@
+package net.kettlemc.kcommon.bukkit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+/**
+ * An executor that runs tasks on the Bukkit main thread.
+ * Tasks submitted from other threads are collected and executed together once per tick.
+ */
+public class BukkitMainThreadExecutor implements Executor {
+
+    private final Plugin plugin;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final BukkitTask timer;
+
+    /**
+     * Creates a new executor and starts the task that executes the queued tasks every tick.
+     *
+     * @param plugin The plugin to schedule the task for.
+     */
+    public BukkitMainThreadExecutor(@NotNull Plugin plugin) {
+        this.plugin = plugin;
+        this.timer = Bukkit.getScheduler().runTaskTimer(plugin, this::runQueued, 1L, 1L);
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        if (Bukkit.isPrimaryThread()) {
+            command.run();
+            return;
+        }
+        tasks.add(command);
+    }
+
+    /**
+     * Stops the timer and runs all remaining tasks on the calling thread.
+     * Should be called in onDisable.
+     */
+    public void close() {
+        timer.cancel();
+        runQueued();
+    }
+
+    private void runQueued() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Error executing main thread task: " + e.getMessage(), e);
+            }
+        }
+    }
+
+}
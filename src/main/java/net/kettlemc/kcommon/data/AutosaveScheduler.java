@@ -0,0 +1,217 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically saves registered entities, spread evenly across the interval instead of saving all of them at once.
+ * The interval is split into slots, every entity is assigned to a slot by the hash of its id, so its saves stay one interval apart.
+ * If the queue of the data handler grows beyond a limit, slots are postponed until it has drained and caught up afterwards.
+ *
+ * @param <T> the type of entity
+ */
+public class AutosaveScheduler<T> implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AutosaveScheduler.class.getName());
+
+    private static final long TICK_MILLIS = 1000;
+    // The maximum amount of postponed slots saved in a single tick while catching up
+    private static final int MAX_CATCH_UP_SLOTS = 4;
+
+    private final DataHandler<T> dataHandler;
+    private final Function<T, String> idFunction;
+    private final Map<String, T>[] slots;
+    private IntSupplier queueSize = () -> 0;
+    private int maxQueueSize = Integer.MAX_VALUE;
+    private Predicate<T> condition = entity -> true;
+    private ScheduledExecutorService scheduler;
+    private long scheduledTicks;
+    private long savedSlots;
+
+    /**
+     * Creates a new autosave scheduler
+     *
+     * @param dataHandler the data handler to save entities with
+     * @param idFunction  a function returning the id of an entity
+     * @param interval    the interval in which every entity is saved
+     * @param unit        the unit of the interval
+     */
+    public AutosaveScheduler(@NotNull DataHandler<T> dataHandler, @NotNull Function<T, String> idFunction, long interval, @NotNull TimeUnit unit) {
+        long slotCount = unit.toMillis(interval) / TICK_MILLIS;
+        if (slotCount < 1 || slotCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Interval must be between 1 second and " + Integer.MAX_VALUE + " seconds");
+        }
+        this.dataHandler = dataHandler;
+        this.idFunction = idFunction;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Map<String, T>[] slots = new Map[(int) slotCount];
+        this.slots = slots;
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Postpones saves while the queue of the data handler is too long
+     *
+     * @param queueSize    the current size of the queue, e.g. {@link DataMetrics#getQueueSize()}
+     * @param maxQueueSize the queue size from which on saves are postponed
+     * @return this scheduler
+     */
+    public AutosaveScheduler<T> setBackpressure(@NotNull IntSupplier queueSize, int maxQueueSize) {
+        if (maxQueueSize < 1) {
+            throw new IllegalArgumentException("Max queue size must be at least 1");
+        }
+        this.queueSize = queueSize;
+        this.maxQueueSize = maxQueueSize;
+        return this;
+    }
+
+    /**
+     * Only saves entities matching a condition, e.g. entities that were modified since the last save
+     *
+     * @param condition the condition
+     * @return this scheduler
+     */
+    public AutosaveScheduler<T> setCondition(@NotNull Predicate<T> condition) {
+        this.condition = condition;
+        return this;
+    }
+
+    /**
+     * Registers an entity, so it is saved once per interval until it is unregistered.
+     * Replaces a registered entity with the same id.
+     *
+     * @param entity the entity
+     */
+    public void register(@NotNull T entity) {
+        String id = this.idFunction.apply(entity);
+        this.slots[slot(id)].put(id, entity);
+    }
+
+    /**
+     * Unregisters an entity, e.g. when a player leaves. The entity is not saved.
+     *
+     * @param id the id of the entity
+     * @return the unregistered entity or null if it wasn't registered
+     */
+    public @Nullable T unregister(@NotNull String id) {
+        return this.slots[slot(id)].remove(id);
+    }
+
+    /**
+     * Checks if an entity is registered
+     *
+     * @param id the id of the entity
+     * @return true if the entity is registered
+     */
+    public boolean isRegistered(@NotNull String id) {
+        return this.slots[slot(id)].containsKey(id);
+    }
+
+    /**
+     * Gets the amount of registered entities
+     *
+     * @return the amount of entities
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, T> slot : this.slots) {
+            size += slot.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the amount of slots that are postponed because of a long queue
+     *
+     * @return the amount of postponed slots
+     */
+    public synchronized long getBacklog() {
+        return this.scheduledTicks - this.savedSlots;
+    }
+
+    private int slot(String id) {
+        // Spread the bits of the hash, ids with a common prefix have similar hashes
+        int hash = id.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), this.slots.length);
+    }
+
+    /**
+     * Starts saving the registered entities
+     */
+    public synchronized void start() {
+        if (this.scheduler != null) {
+            throw new IllegalStateException("AutosaveScheduler already started!");
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kcommon-autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        try {
+            int budget;
+            synchronized (this) {
+                this.scheduledTicks++;
+                // A backlog of more than one interval would save the same entities twice
+                this.savedSlots = Math.max(this.savedSlots, this.scheduledTicks - this.slots.length);
+                int queued = this.queueSize.getAsInt();
+                if (queued >= this.maxQueueSize) {
+                    return;
+                }
+                // Catch up faster while the queue is short
+                budget = queued < this.maxQueueSize / 2 ? MAX_CATCH_UP_SLOTS : 1;
+            }
+            for (int i = 0; i < budget; i++) {
+                int slot;
+                synchronized (this) {
+                    if (this.savedSlots >= this.scheduledTicks) {
+                        return;
+                    }
+                    slot = (int) (this.savedSlots++ % this.slots.length);
+                }
+                save(this.slots[slot]);
+            }
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.SEVERE, "Autosave failed: " + exception.getMessage(), exception);
+        }
+    }
+
+    private void save(Map<String, T> slot) {
+        for (T entity : slot.values()) {
+            if (!this.condition.test(entity)) {
+                continue;
+            }
+            this.dataHandler.save(entity).exceptionally(throwable -> {
+                LOGGER.warning("Could not autosave " + this.idFunction.apply(entity) + ": " + throwable.getMessage());
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Stops saving the registered entities, the entities stay registered
+     */
+    @Override
+    public synchronized void close() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+}
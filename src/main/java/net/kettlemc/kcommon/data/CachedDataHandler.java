@@ -0,0 +1,216 @@
+package net.kettlemc.kcommon.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A read-through and write-through cache in front of another data handler.
+ * The cache is bounded in size and uses frequency-aware (W-TinyLFU) eviction,
+ * so scanning all entities does not evict frequently used ones.
+ *
+ * @param <T> the type of entity
+ */
+public class CachedDataHandler<T> implements DataHandler<T> {
+
+    protected final DataHandler<T> delegate;
+    protected final Function<T, String> idFunction;
+    protected final Cache<String, T> cache;
+    protected InvalidationBus.Subscription subscription;
+
+    /**
+     * Creates a new CachedDataHandler
+     *
+     * @param delegate          the data handler to load and save entities with
+     * @param idFunction        a function returning the id of an entity
+     * @param maximumSize       the maximum amount of cached entities
+     * @param expireAfterAccess the time after which entities that have not been accessed are removed
+     * @param unit              the unit of expireAfterAccess
+     */
+    public CachedDataHandler(@NotNull DataHandler<T> delegate, @NotNull Function<T, String> idFunction, long maximumSize, long expireAfterAccess, @NotNull TimeUnit unit) {
+        this.delegate = delegate;
+        this.idFunction = idFunction;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess, unit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Subscribes to the invalidations other servers publish once they saved an entity, so this cache never serves stale entities.
+     * Replaces the previous subscription.
+     *
+     * @param invalidationBus the bus, null to unsubscribe
+     * @param channel         the channel, the class name of the entity type for {@link HibernateDataHandler}s
+     * @return this data handler
+     */
+    public CachedDataHandler<T> setInvalidationBus(@Nullable InvalidationBus invalidationBus, @NotNull String channel) {
+        if (this.subscription != null) {
+            this.subscription.close();
+            this.subscription = null;
+        }
+        if (invalidationBus != null) {
+            this.subscription = invalidationBus.subscribe(channel, this::invalidate);
+        }
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<T> save(@NotNull T entity) {
+        this.cache.put(this.idFunction.apply(entity), entity);
+        return this.delegate.save(entity);
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid) {
+        return load(uuid, true);
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid, boolean createIfNotExists) {
+        T cached = this.cache.getIfPresent(uuid);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // If the entity was cached while loading, the cached instance is returned so there is only one instance per id
+        return this.delegate.load(uuid, createIfNotExists)
+                .thenApply(entity -> entity == null ? null : this.cache.asMap().merge(uuid, entity, (current, loaded) -> current));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, T>> loadMany(@NotNull Collection<String> uuids, boolean createIfNotExists) {
+        Map<String, T> entities = new LinkedHashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String uuid : uuids) {
+            T cached = this.cache.getIfPresent(uuid);
+            if (cached != null) {
+                entities.put(uuid, cached);
+            } else {
+                missing.add(uuid);
+            }
+        }
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(entities);
+        }
+
+        return this.delegate.loadMany(missing, createIfNotExists).thenApply(loaded -> {
+            loaded.forEach((uuid, entity) -> entities.put(uuid, this.cache.asMap().merge(uuid, entity, (current, ignored) -> current)));
+            return entities;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<T>> saveMany(@NotNull Collection<T> entities) {
+        entities.forEach(entity -> this.cache.put(this.idFunction.apply(entity), entity));
+        return this.delegate.saveMany(entities);
+    }
+
+    @Override
+    public CompletableFuture<List<T>> loadAll() {
+        return this.delegate.loadAll().thenApply(entities -> {
+            List<T> result = new ArrayList<>(entities.size());
+            for (T entity : entities) {
+                T cached = this.cache.asMap().putIfAbsent(this.idFunction.apply(entity), entity);
+                result.add(cached != null ? cached : entity);
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(int chunkSize, @NotNull Consumer<List<T>> consumer) {
+        // Streamed entities bypass the cache, they are usually only needed once
+        return this.delegate.streamAll(chunkSize, consumer);
+    }
+
+    /**
+     * Removes an entity from the cache, the next load will read it from the underlying data handler
+     *
+     * @param uuid the uuid of the entity
+     */
+    public void invalidate(@NotNull String uuid) {
+        this.cache.invalidate(uuid);
+    }
+
+    /**
+     * Removes all entities from the cache
+     */
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Gets an entity from the cache without loading it
+     *
+     * @param uuid the uuid of the entity
+     * @return the cached entity or null if it isn't cached
+     */
+    public T getCached(@NotNull String uuid) {
+        return this.cache.asMap().get(uuid);
+    }
+
+    /**
+     * Gets the amount of loads that were served from the cache
+     *
+     * @return the amount of cache hits
+     */
+    public long getHits() {
+        return this.cache.stats().hitCount();
+    }
+
+    /**
+     * Gets the amount of loads that had to be passed to the underlying data handler
+     *
+     * @return the amount of cache misses
+     */
+    public long getMisses() {
+        return this.cache.stats().missCount();
+    }
+
+    /**
+     * Gets the ratio of loads that were served from the cache
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        return this.cache.stats().hitRate();
+    }
+
+    /**
+     * Gets the approximate amount of cached entities
+     *
+     * @return the size of the cache
+     */
+    public long getSize() {
+        return this.cache.estimatedSize();
+    }
+
+    @Override
+    public boolean initialize() {
+        return this.delegate.initialize();
+    }
+
+    @Override
+    public boolean initialized() {
+        return this.delegate.initialized();
+    }
+
+    @Override
+    public void close() {
+        if (this.subscription != null) {
+            this.subscription.close();
+            this.subscription = null;
+        }
+        this.delegate.close();
+        this.cache.invalidateAll();
+    }
+}
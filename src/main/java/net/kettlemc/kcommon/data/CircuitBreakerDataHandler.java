@@ -0,0 +1,442 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker in front of another data handler, so a database outage doesn't fill the queue with operations waiting for a connection.
+ * After a number of consecutive failures the circuit opens: loads fail fast or are served from a fallback (e.g. a cache),
+ * saves are buffered in memory with only the latest state per entity. Operations already queued in a {@link HibernateDataHandler}
+ * fail fast as well. The health check is probed with exponential backoff,
+ * once it succeeds the buffered saves are replayed in batches and the circuit closes again.
+ *
+ * @param <T> the type of entity
+ */
+public class CircuitBreakerDataHandler<T> implements DataHandler<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreakerDataHandler.class.getName());
+
+    protected final DataHandler<T> delegate;
+    protected final Function<T, String> idFunction;
+    protected final BooleanSupplier healthCheck;
+    protected final int failureThreshold;
+    protected final long initialBackoffMillis;
+    protected final long maxBackoffMillis;
+    protected final AtomicInteger failures = new AtomicInteger();
+    // Orders the saves of an entity, a save may fail after a later save of the same entity was buffered
+    protected final AtomicLong nextSequence = new AtomicLong();
+    // Buffered saves in the order of their first save, guarded by this
+    protected final Map<String, BufferedSave<T>> buffer = new LinkedHashMap<>();
+    protected final ScheduledExecutorService probeScheduler;
+    protected Function<String, T> fallback;
+    protected int replayBatchSize = 100;
+    protected volatile State state = State.CLOSED;
+    protected long backoffMillis;
+
+    /**
+     * Creates a new CircuitBreakerDataHandler
+     *
+     * @param delegate         the data handler to load and save entities with
+     * @param idFunction       a function returning the id of an entity
+     * @param healthCheck      a check returning true if the database is available again, e.g. {@link HibernateDataHandler#isReachable(int)}.
+     *                         If the delegate is a {@link HibernateDataHandler}, its queued operations fail fast while the circuit is open,
+     *                         otherwise see {@link HibernateDataHandler#setAvailabilityCheck(BooleanSupplier)}
+     * @param failureThreshold the amount of consecutive failures after which the circuit opens
+     * @param initialBackoff   the time until the first health check after the circuit opened, doubled after every failed check
+     * @param maxBackoff       the maximum time between health checks
+     * @param unit             the unit of the backoff times
+     */
+    public CircuitBreakerDataHandler(@NotNull DataHandler<T> delegate, @NotNull Function<T, String> idFunction, @NotNull BooleanSupplier healthCheck,
+                                     int failureThreshold, long initialBackoff, long maxBackoff, @NotNull TimeUnit unit) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+        if (initialBackoff < 1 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Backoff must be at least 1 and max backoff must not be less than the initial backoff");
+        }
+        this.delegate = delegate;
+        this.idFunction = idFunction;
+        this.healthCheck = healthCheck;
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        this.probeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kcommon-circuit-breaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (delegate instanceof HibernateDataHandler) {
+            ((HibernateDataHandler<T>) delegate).setAvailabilityCheck(() -> this.state != State.OPEN);
+        }
+    }
+
+    /**
+     * Serves loads from a fallback while the circuit is open, instead of failing them
+     *
+     * @param fallback a function returning the entity or null if it isn't available, e.g. {@link CachedDataHandler#getCached(String)}
+     * @return this data handler
+     */
+    public CircuitBreakerDataHandler<T> setFallback(@Nullable Function<String, T> fallback) {
+        this.fallback = fallback;
+        return this;
+    }
+
+    /**
+     * Sets the amount of buffered saves that are replayed at once after the database is available again
+     *
+     * @param replayBatchSize the amount of saves per batch (default 100)
+     * @return this data handler
+     */
+    public CircuitBreakerDataHandler<T> setReplayBatchSize(int replayBatchSize) {
+        if (replayBatchSize < 1) {
+            throw new IllegalArgumentException("Replay batch size must be at least 1");
+        }
+        this.replayBatchSize = replayBatchSize;
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<T> save(@NotNull T entity) {
+        long sequence = this.nextSequence.getAndIncrement();
+        if (this.state != State.CLOSED) {
+            return buffer(entity, sequence);
+        }
+        return track(this.delegate.save(entity))
+                .handle((saved, throwable) -> throwable == null ? CompletableFuture.completedFuture(saved) : bufferIfOpen(entity, sequence, throwable))
+                .thenCompose(Function.identity());
+    }
+
+    @Override
+    public CompletableFuture<List<T>> saveMany(@NotNull Collection<T> entities) {
+        if (this.state != State.CLOSED) {
+            return DataHandler.super.saveMany(entities);
+        }
+        List<T> copy = new ArrayList<>(entities);
+        long firstSequence = this.nextSequence.getAndAdd(copy.size());
+        return track(this.delegate.saveMany(copy)).handle((saved, throwable) -> {
+            if (throwable == null) {
+                return CompletableFuture.completedFuture(saved);
+            }
+            List<CompletableFuture<T>> futures = new ArrayList<>(copy.size());
+            for (int i = 0; i < copy.size(); i++) {
+                futures.add(bufferIfOpen(copy.get(i), firstSequence + i, throwable));
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(ignored -> {
+                        List<T> result = new ArrayList<>(futures.size());
+                        futures.forEach(future -> result.add(future.join()));
+                        return result;
+                    });
+        }).thenCompose(Function.identity());
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid) {
+        return load(uuid, true);
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid, boolean createIfNotExists) {
+        if (this.state != State.CLOSED) {
+            return loadUnavailable(uuid);
+        }
+        return track(this.delegate.load(uuid, createIfNotExists));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, T>> loadMany(@NotNull Collection<String> uuids, boolean createIfNotExists) {
+        if (this.state != State.CLOSED) {
+            return DataHandler.super.loadMany(uuids, createIfNotExists);
+        }
+        return track(this.delegate.loadMany(uuids, createIfNotExists));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> loadAll() {
+        if (this.state != State.CLOSED) {
+            return unavailable();
+        }
+        return track(this.delegate.loadAll());
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(int chunkSize, @NotNull Consumer<List<T>> consumer) {
+        if (this.state != State.CLOSED) {
+            return unavailable();
+        }
+        return track(this.delegate.streamAll(chunkSize, consumer));
+    }
+
+    private CompletableFuture<T> loadUnavailable(String uuid) {
+        synchronized (this) {
+            // Buffered saves are newer than anything in the fallback
+            BufferedSave<T> buffered = this.buffer.get(uuid);
+            if (buffered != null) {
+                return CompletableFuture.completedFuture(buffered.entity);
+            }
+        }
+        T entity = this.fallback != null ? this.fallback.apply(uuid) : null;
+        return entity != null ? CompletableFuture.completedFuture(entity) : unavailable();
+    }
+
+    private static <V> CompletableFuture<V> unavailable() {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("Database unavailable, circuit breaker is open!"));
+        return future;
+    }
+
+    /**
+     * Records the result of an operation passed to the underlying data handler
+     *
+     * @param future the future of the operation
+     * @param <V>    the type of the result
+     * @return the future
+     */
+    protected <V> CompletableFuture<V> track(CompletableFuture<V> future) {
+        return future.whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                this.failures.set(0);
+            } else if (this.failures.incrementAndGet() >= this.failureThreshold) {
+                open(throwable);
+            }
+        });
+    }
+
+    private CompletableFuture<T> bufferIfOpen(T entity, long sequence, Throwable throwable) {
+        if (this.state != State.CLOSED) {
+            return buffer(entity, sequence);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * Buffers a save until the database is available again, replacing an older buffered save of the same entity
+     *
+     * @param entity   the entity
+     * @param sequence the position of the save among all saves, a buffered later save is not replaced
+     * @return a future completed once the latest buffered state of the entity was saved
+     */
+    protected synchronized CompletableFuture<T> buffer(T entity, long sequence) {
+        BufferedSave<T> buffered = this.buffer.computeIfAbsent(this.idFunction.apply(entity), id -> new BufferedSave<>());
+        if (sequence > buffered.sequence) {
+            buffered.entity = entity;
+            buffered.sequence = sequence;
+        }
+        return buffered.future;
+    }
+
+    private synchronized void open(Throwable cause) {
+        if (this.state != State.CLOSED) {
+            return;
+        }
+        this.state = State.OPEN;
+        this.backoffMillis = this.initialBackoffMillis;
+        LOGGER.warning("Circuit breaker opened after " + this.failureThreshold + " consecutive failures: " + cause.getMessage());
+        scheduleProbe();
+    }
+
+    private void scheduleProbe() {
+        try {
+            this.probeScheduler.schedule(this::probe, this.backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException exception) {
+            // The handler was closed
+        }
+    }
+
+    private void probe() {
+        boolean healthy;
+        try {
+            healthy = this.healthCheck.getAsBoolean();
+        } catch (RuntimeException exception) {
+            healthy = false;
+        }
+        synchronized (this) {
+            if (!healthy) {
+                this.backoffMillis = Math.min(this.backoffMillis * 2, this.maxBackoffMillis);
+                scheduleProbe();
+                return;
+            }
+            this.state = State.HALF_OPEN;
+            LOGGER.info("Database available again, replaying " + this.buffer.size() + " buffered saves");
+        }
+        replay();
+    }
+
+    /**
+     * Replays the next batch of buffered saves, closes the circuit once the buffer is empty
+     */
+    private void replay() {
+        Map<String, BufferedSave<T>> batch = new LinkedHashMap<>();
+        synchronized (this) {
+            if (this.state != State.HALF_OPEN) {
+                return;
+            }
+            Iterator<Map.Entry<String, BufferedSave<T>>> iterator = this.buffer.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < this.replayBatchSize) {
+                Map.Entry<String, BufferedSave<T>> entry = iterator.next();
+                batch.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            if (batch.isEmpty()) {
+                this.failures.set(0);
+                this.state = State.CLOSED;
+                LOGGER.info("Circuit breaker closed");
+                return;
+            }
+        }
+
+        List<T> entities = new ArrayList<>(batch.size());
+        batch.values().forEach(buffered -> entities.add(buffered.entity));
+        CompletableFuture<List<T>> future;
+        try {
+            future = this.delegate.saveMany(entities);
+        } catch (RuntimeException exception) {
+            future = unavailable();
+        }
+        future.whenComplete((saved, throwable) -> {
+            if (throwable == null) {
+                batch.values().forEach(buffered -> buffered.future.complete(buffered.entity));
+                this.probeScheduler.execute(this::replay);
+                return;
+            }
+            synchronized (this) {
+                // Put the batch back in front of the saves buffered during the replay, newer saves of the same entity replace it
+                Map<String, BufferedSave<T>> remaining = new LinkedHashMap<>(this.buffer);
+                this.buffer.clear();
+                batch.forEach((id, buffered) -> {
+                    BufferedSave<T> newer = remaining.remove(id);
+                    if (newer != null) {
+                        // A save failing late may have buffered an older state than the replayed one
+                        if (buffered.sequence > newer.sequence) {
+                            newer.entity = buffered.entity;
+                            newer.sequence = buffered.sequence;
+                        }
+                        newer.future.whenComplete((entity, error) -> {
+                            if (error == null) {
+                                buffered.future.complete(buffered.entity);
+                            } else {
+                                buffered.future.completeExceptionally(error);
+                            }
+                        });
+                        this.buffer.put(id, newer);
+                    } else {
+                        this.buffer.put(id, buffered);
+                    }
+                });
+                this.buffer.putAll(remaining);
+                this.state = State.OPEN;
+                this.backoffMillis = Math.min(this.backoffMillis * 2, this.maxBackoffMillis);
+                LOGGER.log(Level.WARNING, "Replaying buffered saves failed, circuit breaker opened again: " + throwable.getMessage());
+                scheduleProbe();
+            }
+        });
+    }
+
+    /**
+     * Gets the state of the circuit
+     *
+     * @return the state
+     */
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * Gets the amount of buffered saves
+     *
+     * @return the amount of entities with a buffered save
+     */
+    public synchronized int getBufferSize() {
+        return this.buffer.size();
+    }
+
+    @Override
+    public boolean initialize() {
+        return this.delegate.initialize();
+    }
+
+    @Override
+    public boolean initialized() {
+        return this.delegate.initialized();
+    }
+
+    /**
+     * Closes the underlying data handler. Buffered saves are passed to it first,
+     * so they are written or kept in its journal if the database is still unavailable.
+     */
+    @Override
+    public void close() {
+        this.probeScheduler.shutdownNow();
+        if (this.delegate instanceof HibernateDataHandler) {
+            // The buffered saves are written on shutdown if the database is available again
+            ((HibernateDataHandler<T>) this.delegate).setAvailabilityCheck(null);
+        }
+        List<BufferedSave<T>> buffered;
+        synchronized (this) {
+            buffered = new ArrayList<>(this.buffer.values());
+            this.buffer.clear();
+        }
+        if (!buffered.isEmpty()) {
+            LOGGER.warning("Closing with " + buffered.size() + " buffered saves, passing them to the underlying data handler");
+            for (BufferedSave<T> save : buffered) {
+                try {
+                    this.delegate.save(save.entity).whenComplete((entity, throwable) -> {
+                        if (throwable == null) {
+                            save.future.complete(save.entity);
+                        } else {
+                            save.future.completeExceptionally(throwable);
+                        }
+                    });
+                } catch (RuntimeException exception) {
+                    save.future.completeExceptionally(exception);
+                }
+            }
+        }
+        this.delegate.close();
+    }
+
+    /**
+     * The state of the circuit
+     */
+    public enum State {
+        /**
+         * Operations are passed to the underlying data handler
+         */
+        CLOSED,
+        /**
+         * The database is unavailable, loads fail fast and saves are buffered
+         */
+        OPEN,
+        /**
+         * The database is available again and the buffered saves are replayed
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The latest buffered state of an entity
+     *
+     * @param <T> the type of entity
+     */
+    protected static final class BufferedSave<T> {
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T entity;
+        private long sequence = -1;
+    }
+}
@@ -2,8 +2,10 @@ package net.kettlemc.kcommon.data;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.List;
-import java.util.concurrent.Future;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Interface for data handlers that save and load entities
@@ -18,7 +20,7 @@ public interface DataHandler<T> {
      * @param entity the entity to save
      * @return a future containing the entity
      */
-    Future<T> save(@NotNull T entity);
+    CompletableFuture<T> save(@NotNull T entity);
 
     /**
      * Loads an entity from the database and creates a new one if it doesn't exist
@@ -26,7 +28,7 @@ public interface DataHandler<T> {
      * @param uuid the uuid of the entity
      * @return a future containing the entity
      */
-    Future<T> load(@NotNull String uuid);
+    CompletableFuture<T> load(@NotNull String uuid);
 
     /**
      * Loads an entity from the database
@@ -35,14 +37,86 @@ public interface DataHandler<T> {
      * @param createIfNotExists if true, a new entity will be created if it doesn't exist
      * @return a future containing the entity
      */
-    Future<T> load(@NotNull String uuid, boolean createIfNotExists);
+    CompletableFuture<T> load(@NotNull String uuid, boolean createIfNotExists);
+
+    /**
+     * Loads multiple entities from the database and creates new ones for those that don't exist
+     *
+     * @param uuids the uuids of the entities
+     * @return a future containing the entities mapped by their uuid
+     */
+    default CompletableFuture<Map<String, T>> loadMany(@NotNull Collection<String> uuids) {
+        return loadMany(uuids, true);
+    }
+
+    /**
+     * Loads multiple entities from the database.
+     * The default implementation loads every entity on its own.
+     *
+     * @param uuids             the uuids of the entities
+     * @param createIfNotExists if true, new entities will be created for those that don't exist
+     * @return a future containing the entities mapped by their uuid, entities that don't exist are not contained
+     */
+    default CompletableFuture<Map<String, T>> loadMany(@NotNull Collection<String> uuids, boolean createIfNotExists) {
+        Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        for (String uuid : uuids) {
+            futures.put(uuid, load(uuid, createIfNotExists));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, T> entities = new LinkedHashMap<>();
+            futures.forEach((uuid, future) -> {
+                T entity = future.join();
+                if (entity != null) {
+                    entities.put(uuid, entity);
+                }
+            });
+            return entities;
+        });
+    }
+
+    /**
+     * Saves multiple entities to the database.
+     * The default implementation saves every entity on its own.
+     *
+     * @param entities the entities to save
+     * @return a future containing the entities
+     */
+    default CompletableFuture<List<T>> saveMany(@NotNull Collection<T> entities) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            futures.add(save(entity));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
 
     /**
      * Loads all entities from the database
      *
      * @return a future containing a list of all entities
      */
-    Future<List<T>> loadAll();
+    CompletableFuture<List<T>> loadAll();
+
+    /**
+     * Loads all entities from the database in chunks and passes every chunk to the consumer,
+     * so only a single chunk has to be kept in memory at once.
+     * The default implementation loads all entities at once and splits them afterwards.
+     *
+     * @param chunkSize the maximum amount of entities per chunk
+     * @param consumer  the consumer receiving the chunks, called on the data thread
+     * @return a future containing the amount of loaded entities
+     */
+    default CompletableFuture<Long> streamAll(int chunkSize, @NotNull Consumer<List<T>> consumer) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        return loadAll().thenApply(entities -> {
+            for (int i = 0; i < entities.size(); i += chunkSize) {
+                consumer.accept(entities.subList(i, Math.min(i + chunkSize, entities.size())));
+            }
+            return (long) entities.size();
+        });
+    }
 
     /**
      * Initializes the data handler
@@ -0,0 +1,287 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of a data handler. Recording only uses {@link LongAdder}s,
+ * so it never blocks data operations and the metrics can be polled from any thread.
+ */
+public class DataMetrics {
+
+    /**
+     * The amount of latency histogram buckets, bucket i counts latencies between 2^i and 2^(i+1) microseconds
+     */
+    public static final int HISTOGRAM_BUCKETS = 26;
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+    private final Map<SaveResult, LongAdder> saveResults = new EnumMap<>(SaveResult.class);
+    private final IntSupplier queueSize;
+    private final Supplier<PoolStats> poolStats;
+
+    /**
+     * Creates new metrics
+     *
+     * @param queueSize a supplier for the current amount of queued operations
+     * @param poolStats a supplier for the current stats of the connection pool, may return null if unavailable
+     */
+    public DataMetrics(@NotNull IntSupplier queueSize, @NotNull Supplier<PoolStats> poolStats) {
+        this.queueSize = queueSize;
+        this.poolStats = poolStats;
+        for (Operation operation : Operation.values()) {
+            this.operations.put(operation, new OperationMetrics());
+        }
+        for (SaveResult result : SaveResult.values()) {
+            this.saveResults.put(result, new LongAdder());
+        }
+    }
+
+    /**
+     * Records an executed operation
+     *
+     * @param operation      the type of operation
+     * @param waitNanos      the time the operation was queued in nanoseconds
+     * @param executionNanos the time the operation took to execute in nanoseconds
+     * @param success        false if the operation failed
+     */
+    public void record(@NotNull Operation operation, long waitNanos, long executionNanos, boolean success) {
+        OperationMetrics metrics = this.operations.get(operation);
+        metrics.count.increment();
+        if (!success) {
+            metrics.failures.increment();
+        }
+        metrics.waitNanos.add(waitNanos);
+        metrics.executionNanos.add(executionNanos);
+        metrics.histogram[bucket(waitNanos + executionNanos)].increment();
+    }
+
+    /**
+     * Records how a save was written if dirty tracking is enabled
+     *
+     * @param result how the save was written
+     */
+    public void record(@NotNull SaveResult result) {
+        this.saveResults.get(result).increment();
+    }
+
+    /**
+     * Gets the amount of saves written in a specific way, only counted if dirty tracking is enabled
+     *
+     * @param result how the saves were written
+     * @return the amount of saves
+     */
+    public long getSaveCount(@NotNull SaveResult result) {
+        return this.saveResults.get(result).sum();
+    }
+
+    /**
+     * Gets the current stats of an operation type
+     *
+     * @param operation the type of operation
+     * @return the stats
+     */
+    public OperationStats getStats(@NotNull Operation operation) {
+        OperationMetrics metrics = this.operations.get(operation);
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = metrics.histogram[i].sum();
+        }
+        return new OperationStats(metrics.count.sum(), metrics.failures.sum(), metrics.waitNanos.sum(), metrics.executionNanos.sum(), histogram);
+    }
+
+    /**
+     * Gets the amount of currently queued operations
+     *
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        return this.queueSize.getAsInt();
+    }
+
+    /**
+     * Gets the current stats of the connection pool
+     *
+     * @return the stats or null if they are not available
+     */
+    public @Nullable PoolStats getPoolStats() {
+        return this.poolStats.get();
+    }
+
+    private static int bucket(long nanos) {
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+        return Math.min(HISTOGRAM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * The type of a data operation
+     */
+    public enum Operation {
+        SAVE,
+        SAVE_MANY,
+        LOAD,
+        LOAD_MANY,
+        LOAD_ALL,
+        STREAM_ALL
+    }
+
+    /**
+     * How a save was written if dirty tracking is enabled
+     */
+    public enum SaveResult {
+        /**
+         * The entity was unchanged, nothing was written
+         */
+        SKIPPED,
+        /**
+         * Only the changed columns were updated
+         */
+        PARTIAL,
+        /**
+         * The whole entity was written
+         */
+        FULL
+    }
+
+    private static final class OperationMetrics {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder executionNanos = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+        private OperationMetrics() {
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                this.histogram[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the metrics of an operation type
+     */
+    public static final class OperationStats {
+
+        private final long count;
+        private final long failures;
+        private final long waitNanos;
+        private final long executionNanos;
+        private final long[] histogram;
+
+        private OperationStats(long count, long failures, long waitNanos, long executionNanos, long[] histogram) {
+            this.count = count;
+            this.failures = failures;
+            this.waitNanos = waitNanos;
+            this.executionNanos = executionNanos;
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return the amount of executed operations
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the amount of failed operations
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the average time operations were queued in milliseconds
+         */
+        public double getAverageWaitMillis() {
+            return count == 0 ? 0 : waitNanos / 1_000_000D / count;
+        }
+
+        /**
+         * @return the average time operations took to execute in milliseconds
+         */
+        public double getAverageExecutionMillis() {
+            return count == 0 ? 0 : executionNanos / 1_000_000D / count;
+        }
+
+        /**
+         * Gets the latency histogram, bucket i counts latencies (wait and execution) between 2^i and 2^(i+1) microseconds
+         *
+         * @return a copy of the histogram
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * Estimates a latency percentile (wait and execution) from the histogram
+         *
+         * @param percentile the percentile between 0 and 100
+         * @return the upper bound of the bucket containing the percentile in milliseconds
+         */
+        public double getPercentileMillis(double percentile) {
+            long target = (long) Math.ceil(count * percentile / 100D);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= target && seen > 0) {
+                    return (1L << (i + 1)) / 1000D;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A snapshot of the connection pool
+     */
+    public static final class PoolStats {
+
+        private final int active;
+        private final int idle;
+        private final int pending;
+        private final int total;
+
+        public PoolStats(int active, int idle, int pending, int total) {
+            this.active = active;
+            this.idle = idle;
+            this.pending = pending;
+            this.total = total;
+        }
+
+        /**
+         * @return the amount of connections in use
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return the amount of idle connections
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return the amount of threads waiting for a connection
+         */
+        public int getPending() {
+            return pending;
+        }
+
+        /**
+         * @return the total amount of connections
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+}
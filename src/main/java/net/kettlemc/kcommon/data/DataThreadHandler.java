@@ -1,91 +1,914 @@
 package net.kettlemc.kcommon.data;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A thread handler for data operations containing a queue.
+ * Tasks can be queued with a key (e.g. the id of an entity), tasks with the same key are always executed
+ * by the same worker in the order they were queued, while tasks with different keys may run in parallel.
+ * Tasks with a higher {@link Priority} are executed first, unless an earlier task with the same key is still queued.
+ * A task can also be queued with multiple keys, e.g. a bulk operation on several entities, it keeps the order of every key.
+ * Consecutive {@link BatchTask}s in the queue of a worker can be executed together as a single batch.
+ * On Java 21 and newer, the workers can be virtual threads, which allows using many workers
+ * while limiting the amount of tasks executed at the same time.
  */
 public class DataThreadHandler {
 
     private static final Logger LOGGER = Logger.getLogger(DataThreadHandler.class.getName());
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+    // The handler whose worker is running on the current thread
+    private static final ThreadLocal<DataThreadHandler> CURRENT_HANDLER = new ThreadLocal<>();
+    // The time the workers get to finish their current task when shutting down without a deadline
+    private static final long WORKER_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final int workers;
+    private final int maxBatchSize;
+    private final boolean virtualThreads;
+    private final Semaphore permits;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Updated by the queues, so reading the size doesn't contend for their locks
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    private int capacity = Integer.MAX_VALUE;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    private Semaphore capacityPermits;
 
-    private BlockingQueue<Runnable> taskQueue;
+    private List<TaskQueue> taskQueues;
     private ExecutorService executorService;
+    private ExecutorService drainPool;
     private AtomicBoolean running;
 
     /**
-     * Initializes the DataThreadHandler by creating a new task queue and executor service.
+     * Creates a new DataThreadHandler using a single worker thread.
+     */
+    public DataThreadHandler() {
+        this(1);
+    }
+
+    /**
+     * Creates a new DataThreadHandler using the given amount of worker threads.
+     *
+     * @param workers the amount of worker threads, each with its own queue
+     */
+    public DataThreadHandler(int workers) {
+        this(workers, 1);
+    }
+
+    /**
+     * Creates a new DataThreadHandler using the given amount of worker threads.
+     *
+     * @param workers      the amount of worker threads, each with its own queue
+     * @param maxBatchSize the maximum amount of {@link BatchTask}s executed together, 1 to disable batching
+     */
+    public DataThreadHandler(int workers, int maxBatchSize) {
+        this(workers, maxBatchSize, false, workers);
+    }
+
+    /**
+     * Creates a new DataThreadHandler using the given amount of workers.
+     *
+     * @param workers        the amount of workers, each with its own queue
+     * @param maxBatchSize   the maximum amount of {@link BatchTask}s executed together, 1 to disable batching
+     * @param virtualThreads if true, virtual threads are used for the workers if the JVM supports them
+     * @param maxConcurrency the maximum amount of tasks executed at the same time, usually the size of the connection pool
+     */
+    public DataThreadHandler(int workers, int maxBatchSize, boolean virtualThreads, int maxConcurrency) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("DataThreadHandler needs at least one worker!");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be at least 1");
+        }
+        this.workers = workers;
+        this.maxBatchSize = maxBatchSize;
+        this.virtualThreads = virtualThreads && isVirtualThreadsSupported();
+        this.permits = maxConcurrency < workers ? new Semaphore(maxConcurrency) : null;
+    }
+
+    /**
+     * Checks if the running JVM supports virtual threads (Java 21 or newer)
+     *
+     * @return true if virtual threads are supported
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Creates a factory for virtual threads using reflection, as the library is compiled for Java 8
+     *
+     * @return the factory or null if virtual threads are not supported
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "kcommon-data-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Limits the amount of queued tasks. Has to be called before {@link #init()}.
+     *
+     * @param capacity       the maximum amount of queued tasks across all workers
+     * @param overloadPolicy what to do if a task is queued while the queue is full
+     */
+    public void setCapacity(int capacity, @NotNull OverloadPolicy overloadPolicy) {
+        if (taskQueues != null) {
+            throw new IllegalStateException("DataThreadHandler already initialized!");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * Initializes the DataThreadHandler by creating the task queues and executor service.
      */
     public void init() {
-        if (taskQueue != null || executorService != null) {
+        if (taskQueues != null || executorService != null) {
             throw new IllegalStateException("DataThreadHandler already initialized!");
         }
 
-        taskQueue = new LinkedBlockingQueue<>();
-        executorService = Executors.newSingleThreadExecutor();
+        taskQueues = new ArrayList<>(workers);
+        executorService = this.virtualThreads ? Executors.newFixedThreadPool(workers, VIRTUAL_THREAD_FACTORY) : Executors.newFixedThreadPool(workers);
+        capacityPermits = capacity < Integer.MAX_VALUE ? new Semaphore(capacity) : null;
         running = new AtomicBoolean(true);
 
-        executorService.execute(() -> {
-            while (running.get()) {
-                try {
-                    Runnable task = taskQueue.poll(1, TimeUnit.SECONDS);
-                    if (task != null) {
-                        task.run();
+        for (int i = 0; i < workers; i++) {
+            TaskQueue taskQueue = new TaskQueue();
+            taskQueues.add(taskQueue);
+            executorService.execute(() -> {
+                CURRENT_HANDLER.set(this);
+                while (true) {
+                    try {
+                        Runnable task = taskQueue.take();
+                        if (task == null) {
+                            break;
+                        }
+                        execute(taskQueue, task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.SEVERE, "Error processing task: " + e.getMessage(), e);
                     }
-                } catch (Exception e) {
-                    LOGGER.log(Level.SEVERE, "Error processing task: " + e.getMessage(), e);
                 }
-            }
-        });
+            });
+        }
     }
 
     /**
      * Queues a runnable to be executed by the executor service.
+     * Runnables queued without a key are distributed between the workers.
      *
      * @param runnable the runnable to queue
      */
     public void queue(Runnable runnable) {
-        if (taskQueue == null || executorService == null || running == null || !running.get()) {
-            throw new IllegalStateException("DataThreadHandler not initialized or already shut down!");
+        queue(Priority.NORMAL, runnable);
+    }
+
+    /**
+     * Queues a runnable to be executed by the executor service.
+     * Runnables queued without a key are distributed between the workers.
+     *
+     * @param priority the priority of the runnable
+     * @param runnable the runnable to queue
+     */
+    public void queue(@NotNull Priority priority, Runnable runnable) {
+        checkRunning();
+        offer(taskQueues.get(Math.floorMod(nextWorker.getAndIncrement(), workers)), Collections.emptyList(), priority, runnable);
+    }
+
+    /**
+     * Queues a runnable to be executed by the executor service.
+     * Runnables with the same key are executed by the same worker in the order they were queued.
+     *
+     * @param key      the key used to select the worker, usually the id of an entity
+     * @param runnable the runnable to queue
+     */
+    public void queue(@NotNull String key, Runnable runnable) {
+        queue(key, Priority.NORMAL, runnable);
+    }
+
+    /**
+     * Queues a runnable to be executed by the executor service.
+     * Runnables with the same key are executed by the same worker in the order they were queued,
+     * so a runnable never overtakes an earlier runnable with the same key, even if its priority is higher.
+     *
+     * @param key      the key used to select the worker, usually the id of an entity
+     * @param priority the priority of the runnable
+     * @param runnable the runnable to queue
+     */
+    public void queue(@NotNull String key, @NotNull Priority priority, Runnable runnable) {
+        checkRunning();
+        offer(taskQueues.get(getWorker(key)), Collections.singletonList(key), priority, runnable);
+    }
+
+    /**
+     * Queues a runnable accessing multiple keys, e.g. a bulk operation on several entities.
+     * The runnable is executed after all earlier runnables with any of the keys and before all later ones,
+     * so it gets at most the lowest priority of the queued runnables with any of the keys.
+     * All keys have to be executed by the same worker, see {@link #getWorker(String)}.
+     *
+     * @param keys     the keys, usually the ids of the entities
+     * @param priority the priority of the runnable
+     * @param runnable the runnable to queue
+     */
+    public void queue(@NotNull Collection<String> keys, @NotNull Priority priority, Runnable runnable) {
+        checkRunning();
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one key is required");
+        }
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(keys));
+        int worker = getWorker(distinct.get(0));
+        for (String key : distinct) {
+            if (getWorker(key) != worker) {
+                throw new IllegalArgumentException("All keys have to be executed by the same worker");
+            }
         }
-        taskQueue.add(runnable);
+        offer(taskQueues.get(worker), distinct, priority, runnable);
+    }
+
+    /**
+     * Adds a runnable to a queue, applying the overload policy if the queue is full.
+     * Workers never wait for space, as only workers make space in the queue,
+     * e.g. a save queued by a callback of a load that completes on the worker.
+     *
+     * @param taskQueue the queue of the worker
+     * @param keys      the keys of the runnable, empty if it has no key
+     * @param priority  the priority of the runnable
+     * @param runnable  the runnable to queue
+     */
+    @SuppressWarnings("fallthrough")
+    private void offer(TaskQueue taskQueue, List<String> keys, Priority priority, Runnable runnable) {
+        if (capacityPermits == null) {
+            taskQueue.add(keys, priority, runnable, false);
+            return;
+        }
+        if (capacityPermits.tryAcquire()) {
+            taskQueue.add(keys, priority, runnable, true);
+            return;
+        }
+
+        switch (overloadPolicy) {
+            case REJECT:
+                throw new RejectedExecutionException("DataThreadHandler queue is full (" + capacity + " tasks)");
+            case COALESCE:
+                if (keys.size() == 1 && runnable instanceof CoalescingTask && taskQueue.coalesce(keys.get(0), (CoalescingTask) runnable)) {
+                    return;
+                }
+                // Tasks that can't be coalesced wait for space instead
+            case BLOCK:
+            default:
+                if (CURRENT_HANDLER.get() == this) {
+                    taskQueue.add(keys, priority, runnable, false);
+                    return;
+                }
+                capacityPermits.acquireUninterruptibly();
+                taskQueue.add(keys, priority, runnable, true);
+        }
+    }
+
+    /**
+     * Executes a task taken from a queue. If the task is a {@link BatchTask}, the following tasks in the queue
+     * that can be batched with it are taken as well and executed together.
+     * If the amount of concurrent tasks is limited, this waits until the task is allowed to run.
+     *
+     * @param taskQueue the queue the task was taken from
+     * @param task      the task to execute
+     */
+    private void execute(TaskQueue taskQueue, Runnable task) {
+        if (permits == null) {
+            executeBatch(taskQueue, task);
+            return;
+        }
+
+        permits.acquireUninterruptibly();
+        try {
+            executeBatch(taskQueue, task);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void executeBatch(TaskQueue taskQueue, Runnable task) {
+        if (maxBatchSize <= 1 || !(task instanceof BatchTask)) {
+            task.run();
+            return;
+        }
+
+        BatchTask first = (BatchTask) task;
+        List<BatchTask> batch = new ArrayList<>();
+        batch.add(first);
+
+        Runnable next;
+        while (batch.size() < maxBatchSize && (next = taskQueue.pollIf(queued -> queued instanceof BatchTask && first.canBatchWith((BatchTask) queued))) != null) {
+            batch.add((BatchTask) next);
+        }
+        first.runBatch(batch);
+    }
+
+    /**
+     * Gets the index of the worker that executes runnables queued with the given key.
+     * Can be used to group keys so that each group is queued as a single runnable without breaking the order per key.
+     *
+     * @param key the key
+     * @return the index of the worker
+     */
+    public int getWorker(@NotNull String key) {
+        return Math.floorMod(key.hashCode(), workers);
+    }
+
+    /**
+     * Gets the amount of worker threads used by this handler
+     *
+     * @return the amount of workers
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Gets the amount of tasks currently queued across all workers
+     *
+     * @return the amount of queued tasks
+     */
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Checks if the workers are virtual threads
+     *
+     * @return true if virtual threads are used
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Checks if the handler was initialized and not shut down yet
+     *
+     * @return true if tasks can be queued
+     */
+    public boolean isRunning() {
+        return running != null && running.get();
     }
 
     /**
      * Shuts down the executor service and ensures task queue is processed gracefully before termination.
+     * The workers get 10 seconds to finish their current task, then the remaining tasks are executed on the calling thread.
      */
     public void shutdown() {
-        if (taskQueue == null || executorService == null || running == null || !running.get()) {
-            throw new IllegalStateException("DataThreadHandler not initialized or already shut down!");
+        shutdown(1, TimeUnit.SECONDS.toNanos(WORKER_SHUTDOWN_TIMEOUT_SECONDS), Long.MAX_VALUE);
+    }
+
+    /**
+     * Shuts down the executor service and executes the remaining queued tasks on a temporary pool before the deadline.
+     * The workers finish their current task first, then the remaining tasks are split between the threads of the pool by key,
+     * so tasks with the same key are still executed in order. {@link CoalescingTask}s with the same key are merged
+     * and consecutive {@link BatchTask}s are executed in batches.
+     * {@link DroppableTask}s that were not started before the deadline are dropped.
+     * Tasks that are still running at the deadline can't be interrupted, see {@link #awaitTermination(long, TimeUnit)}.
+     *
+     * @param parallelism the amount of threads executing the remaining tasks, usually the size of the connection pool,
+     *                    1 to execute them on the calling thread
+     * @param timeout     the maximum time to wait for the workers and the remaining tasks
+     * @param unit        the unit of the timeout
+     * @return the keys of the writes lost because their tasks were not started before the deadline,
+     * as returned by {@link DroppableTask#drop(Throwable)}, and all keys of other tasks that were not started
+     */
+    public Set<String> shutdown(int parallelism, long timeout, @NotNull TimeUnit unit) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
         }
+        return shutdown(parallelism, unit.toNanos(timeout), unit.toNanos(timeout));
+    }
 
-        System.out.println(taskQueue.size() + " tasks remaining in queue. Attempting shutdown...");
-        running.set(false);
+    private Set<String> shutdown(int parallelism, long workerTimeoutNanos, long timeoutNanos) {
+        checkRunning();
+        long start = System.nanoTime();
 
-        // Drain any remaining tasks in the queue before shutting down
-        taskQueue.forEach(runnable -> {
-            try {
-                runnable.run();
-            } catch (Exception e) {
-                System.err.println("Error executing task during shutdown: " + e.getMessage());
-                e.printStackTrace();
-            }
-        });
-        taskQueue.clear();
+        running.set(false);
+        taskQueues.forEach(TaskQueue::stop);
 
+        // Wait for the workers to finish their current task, so no task runs concurrently with a later one of the same key
         executorService.shutdown();
         try {
-            if (!executorService.awaitTermination(10, TimeUnit.SECONDS)) {
-                System.err.println("Executor did not terminate in the allocated time. Forcing shutdown...");
+            if (!executorService.awaitTermination(Math.min(workerTimeoutNanos, remaining(start, timeoutNanos)), TimeUnit.NANOSECONDS)) {
+                LOGGER.warning("Workers did not finish their current task in time. Forcing shutdown...");
                 executorService.shutdownNow();
             }
         } catch (InterruptedException e) {
-            System.err.println("Shutdown interrupted. Forcing shutdown...");
+            LOGGER.warning("Shutdown interrupted. Forcing shutdown...");
             executorService.shutdownNow();
             Thread.currentThread().interrupt();
         }
+
+        List<Entry> entries = new ArrayList<>();
+        taskQueues.forEach(taskQueue -> entries.addAll(taskQueue.drain()));
+        LOGGER.info(entries.size() + " tasks remaining in queue. Attempting shutdown...");
+
+        // Keys connected by tasks with multiple keys have to be executed by the same thread to keep their order
+        Map<String, String> roots = new HashMap<>();
+        for (Entry entry : entries) {
+            for (int i = 1; i < entry.keys.size(); i++) {
+                roots.put(root(roots, entry.keys.get(i)), root(roots, entry.keys.get(0)));
+            }
+        }
+        List<List<Entry>> buckets = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        Map<String, Integer> bucketsByRoot = new HashMap<>();
+        int nextBucket = 0;
+        for (Entry entry : entries) {
+            int bucket;
+            if (entry.keys.isEmpty()) {
+                bucket = nextBucket++ % parallelism;
+            } else {
+                Integer assigned = bucketsByRoot.get(root(roots, entry.keys.get(0)));
+                if (assigned == null) {
+                    assigned = nextBucket++ % parallelism;
+                    bucketsByRoot.put(root(roots, entry.keys.get(0)), assigned);
+                }
+                bucket = assigned;
+            }
+            addCoalesced(buckets.get(bucket), entry);
+        }
+
+        AtomicIntegerArray started = new AtomicIntegerArray(parallelism);
+        if (parallelism == 1) {
+            drain(buckets.get(0), started, 0, start, timeoutNanos);
+        } else {
+            drainPool = Executors.newFixedThreadPool(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                int bucket = i;
+                drainPool.execute(() -> drain(buckets.get(bucket), started, bucket, start, timeoutNanos));
+            }
+            drainPool.shutdown();
+            try {
+                if (!drainPool.awaitTermination(remaining(start, timeoutNanos), TimeUnit.NANOSECONDS)) {
+                    drainPool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                drainPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        RejectedExecutionException cause = new RejectedExecutionException("DataThreadHandler was shut down before the task was executed");
+        Set<String> lost = new LinkedHashSet<>();
+        int unstarted = 0;
+        for (int i = 0; i < parallelism; i++) {
+            List<Entry> bucket = buckets.get(i);
+            // Claims the remaining tasks, so a drain thread still running can't start them anymore
+            for (int j = started.getAndSet(i, bucket.size()); j < bucket.size(); j++) {
+                unstarted++;
+                lost.addAll(drop(bucket.get(j), cause));
+            }
+        }
+        if (unstarted > 0) {
+            LOGGER.severe("Shutdown deadline exceeded, " + unstarted + " tasks were not executed, the writes of " + lost.size() + " keys were lost: " + lost);
+        }
+        return lost;
+    }
+
+    /**
+     * Waits until the tasks still running after {@link #shutdown(int, long, TimeUnit)} finished,
+     * e.g. before closing resources used by the tasks. Running tasks are not interrupted by the shutdown.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return true if no task is running anymore, false if the timeout elapsed before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        if (running == null || running.get()) {
+            throw new IllegalStateException("DataThreadHandler not shut down!");
+        }
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        if (!executorService.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        return drainPool == null || drainPool.awaitTermination(remaining(start, timeoutNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Drops a task that could not be executed before the shutdown deadline
+     *
+     * @param entry the entry of the task
+     * @param cause the exception passed to {@link DroppableTask#drop(Throwable)}
+     * @return the keys of the lost writes, all keys of the task if it is not a {@link DroppableTask}
+     */
+    private static Collection<String> drop(Entry entry, Throwable cause) {
+        if (!(entry.task instanceof DroppableTask)) {
+            // Other tasks may have been writes
+            return entry.keys;
+        }
+        try {
+            return ((DroppableTask) entry.task).drop(cause);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error dropping task during shutdown: " + e.getMessage(), e);
+            return entry.keys;
+        }
+    }
+
+    /**
+     * Finds the representative key of the keys connected to a key by tasks with multiple keys
+     *
+     * @param roots the parent of every connected key
+     * @param key   the key
+     * @return the representative key
+     */
+    private static String root(Map<String, String> roots, String key) {
+        String root = key;
+        String parent;
+        while ((parent = roots.get(root)) != null && !parent.equals(root)) {
+            root = parent;
+        }
+        // Shorten the path for the next lookup
+        if (!root.equals(key)) {
+            roots.put(key, root);
+        }
+        return root;
+    }
+
+    private static long remaining(long start, long timeoutNanos) {
+        return Math.max(0, timeoutNanos - (System.nanoTime() - start));
+    }
+
+    /**
+     * Adds an entry to a bucket of the shutdown drain, merging it into the last entry with the same key if possible
+     *
+     * @param bucket the bucket
+     * @param entry  the entry
+     */
+    private void addCoalesced(List<Entry> bucket, Entry entry) {
+        if (entry.keys.size() == 1 && entry.task instanceof CoalescingTask) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Entry queued = bucket.get(i);
+                if (!queued.keys.contains(entry.keys.get(0))) {
+                    continue;
+                }
+                Runnable merged = ((CoalescingTask) entry.task).coalesce(queued.task);
+                if (merged != null) {
+                    bucket.set(i, new Entry(queued.keys, queued.priority, queued.sequence, merged, queued.permit));
+                    return;
+                }
+                break;
+            }
+        }
+        bucket.add(entry);
+    }
+
+    /**
+     * Executes the tasks of a bucket of the shutdown drain in order until the deadline
+     *
+     * @param bucket       the bucket
+     * @param started      the amount of started tasks per bucket
+     * @param index        the index of the bucket
+     * @param start        the start of the shutdown in nanoseconds
+     * @param timeoutNanos the timeout of the shutdown in nanoseconds
+     */
+    private void drain(List<Entry> bucket, AtomicIntegerArray started, int index, long start, long timeoutNanos) {
+        int i = 0;
+        while (i < bucket.size() && System.nanoTime() - start < timeoutNanos && !Thread.currentThread().isInterrupted()) {
+            Runnable task = bucket.get(i).task;
+            int next = i + 1;
+            List<BatchTask> batch = null;
+            if (maxBatchSize > 1 && task instanceof BatchTask) {
+                BatchTask first = (BatchTask) task;
+                batch = new ArrayList<>();
+                batch.add(first);
+                while (next < bucket.size() && batch.size() < maxBatchSize && bucket.get(next).task instanceof BatchTask
+                        && first.canBatchWith((BatchTask) bucket.get(next).task)) {
+                    batch.add((BatchTask) bucket.get(next++).task);
+                }
+            }
+            // Tasks are marked as started before they run, a started task is never dropped
+            if (!started.compareAndSet(index, i, next)) {
+                return;
+            }
+            try {
+                if (batch != null) {
+                    ((BatchTask) task).runBatch(batch);
+                } else {
+                    task.run();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error executing task during shutdown: " + e.getMessage(), e);
+            }
+            i = next;
+        }
+    }
+
+    /**
+     * Gets the maximum amount of tasks executed in a single batch
+     *
+     * @return the maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    private void checkRunning() {
+        if (taskQueues == null || executorService == null || running == null || !running.get()) {
+            throw new IllegalStateException("DataThreadHandler not initialized or already shut down!");
+        }
+    }
+
+    /**
+     * The priority of a queued task, tasks with a higher priority are executed first.
+     */
+    public enum Priority {
+        /**
+         * Tasks a player is waiting for, e.g. loading a profile on join
+         */
+        HIGH,
+        /**
+         * Regular tasks, e.g. saving an entity
+         */
+        NORMAL,
+        /**
+         * Bulk and background tasks, e.g. loading all entities
+         */
+        LOW
+    }
+
+    /**
+     * What to do if a task is queued while the queue is full.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Wait until there is space in the queue
+         */
+        BLOCK,
+        /**
+         * Throw a {@link RejectedExecutionException}
+         */
+        REJECT,
+        /**
+         * Merge {@link CoalescingTask}s into a queued task with the same key, otherwise wait until there is space
+         */
+        COALESCE
+    }
+
+    /**
+     * A task that can be executed together with other tasks, e.g. multiple saves in a single transaction.
+     */
+    public interface BatchTask extends Runnable {
+
+        /**
+         * Checks if the given task can be executed in the same batch as this one
+         *
+         * @param other the other task
+         * @return true if both tasks can be batched
+         */
+        boolean canBatchWith(@NotNull BatchTask other);
+
+        /**
+         * Executes a batch of tasks. The batch always starts with this task and only contains
+         * tasks accepted by {@link #canBatchWith(BatchTask)}, in the order they were queued.
+         *
+         * @param batch the tasks to execute
+         */
+        void runBatch(@NotNull List<BatchTask> batch);
+
+    }
+
+    /**
+     * A task that can be merged into an already queued task with the same key if the queue is full,
+     * e.g. a save replacing an older queued save of the same entity.
+     */
+    public interface CoalescingTask extends Runnable {
+
+        /**
+         * Merges this task into a queued task with the same key
+         *
+         * @param queued the queued task
+         * @return the task replacing the queued task, or null if the tasks can't be merged
+         */
+        @Nullable Runnable coalesce(@NotNull Runnable queued);
+
+    }
+
+    /**
+     * A task that is notified if it is dropped because it could not be executed before the shutdown deadline,
+     * e.g. to complete its future exceptionally.
+     */
+    public interface DroppableTask extends Runnable {
+
+        /**
+         * Called instead of executing the task once the shutdown deadline passed
+         *
+         * @param cause the exception to complete the futures of the task with
+         * @return the keys of the writes that were lost, e.g. the ids of unsaved entities, empty if the task didn't write
+         */
+        @NotNull Collection<String> drop(@NotNull Throwable cause);
+
+    }
+
+    /**
+     * A queued task with its keys, priority and position
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        private final List<String> keys;
+        private final Priority priority;
+        private final long sequence;
+        private final Runnable task;
+        // Whether the task holds one of the capacity permits
+        private final boolean permit;
+
+        private Entry(List<String> keys, Priority priority, long sequence, Runnable task, boolean permit) {
+            this.keys = keys;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+            this.permit = permit;
+        }
+
+        @Override
+        public int compareTo(@NotNull Entry other) {
+            int compare = Integer.compare(this.priority.ordinal(), other.priority.ordinal());
+            return compare != 0 ? compare : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The amount and lowest priority of the queued tasks with the same key, used to keep their order
+     */
+    private static final class KeyState {
+
+        private int queued;
+        private Priority lowestPriority;
+
+        private KeyState(Priority priority) {
+            this.lowestPriority = priority;
+        }
+    }
+
+    /**
+     * The priority queue of a single worker. A waiting worker is woken up as soon as a task is added.
+     */
+    private final class TaskQueue {
+
+        private final PriorityQueue<Entry> entries = new PriorityQueue<>();
+        private final Map<String, KeyState> keys = new HashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private boolean stopped;
+
+        private void add(List<String> taskKeys, Priority priority, Runnable task, boolean permit) {
+            lock.lock();
+            try {
+                if (stopped) {
+                    if (permit) {
+                        capacityPermits.release();
+                    }
+                    throw new IllegalStateException("DataThreadHandler not initialized or already shut down!");
+                }
+
+                // A task may not overtake an earlier task with one of its keys, so it gets at most the lowest priority of those
+                for (String key : taskKeys) {
+                    KeyState state = keys.get(key);
+                    if (state != null && state.lowestPriority.ordinal() > priority.ordinal()) {
+                        priority = state.lowestPriority;
+                    }
+                }
+                for (String key : taskKeys) {
+                    KeyState state = keys.get(key);
+                    if (state == null) {
+                        state = new KeyState(priority);
+                        keys.put(key, state);
+                    }
+                    state.lowestPriority = priority;
+                    state.queued++;
+                }
+                entries.add(new Entry(taskKeys, priority, nextSequence.getAndIncrement(), task, permit));
+                queueSize.incrementAndGet();
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean coalesce(@NotNull String key, CoalescingTask task) {
+            lock.lock();
+            try {
+                if (stopped || !keys.containsKey(key)) {
+                    return false;
+                }
+
+                Entry latest = null;
+                for (Entry entry : entries) {
+                    if (entry.keys.contains(key) && (latest == null || entry.sequence > latest.sequence)) {
+                        latest = entry;
+                    }
+                }
+                if (latest == null) {
+                    return false;
+                }
+
+                Runnable merged = task.coalesce(latest.task);
+                if (merged == null) {
+                    return false;
+                }
+                // The merged task keeps the position of the queued one, there is no later task with the same key
+                entries.remove(latest);
+                entries.add(new Entry(latest.keys, latest.priority, latest.sequence, merged, latest.permit));
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Nullable
+        private Runnable take() throws InterruptedException {
+            lock.lock();
+            try {
+                while (entries.isEmpty() && !stopped) {
+                    notEmpty.await();
+                }
+                return stopped ? null : remove(entries.poll());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Nullable
+        private Runnable pollIf(@NotNull Predicate<Runnable> condition) {
+            lock.lock();
+            try {
+                Entry head = entries.peek();
+                return head != null && condition.test(head.task) ? remove(entries.poll()) : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Runnable remove(Entry entry) {
+            for (String key : entry.keys) {
+                KeyState state = keys.get(key);
+                if (--state.queued == 0) {
+                    keys.remove(key);
+                }
+            }
+            queueSize.decrementAndGet();
+            if (entry.permit) {
+                capacityPermits.release();
+            }
+            return entry.task;
+        }
+
+        private List<Entry> drain() {
+            lock.lock();
+            try {
+                List<Entry> drained = new ArrayList<>(entries.size());
+                Entry entry;
+                while ((entry = entries.poll()) != null) {
+                    remove(entry);
+                    drained.add(entry);
+                }
+                return drained;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void stop() {
+            lock.lock();
+            try {
+                stopped = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 }
@@ -0,0 +1,222 @@
+package net.kettlemc.kcommon.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last persisted state of entities, so saves of unchanged entities can be skipped
+ * and only changed columns have to be written.
+ * States are copied and compared using the Hibernate types of the mapped properties, like Hibernate's own dirty checking.
+ * Collection properties can't be compared against a detached copy, so entities containing them are always written completely.
+ * The remembered states are bounded in size and expire if they are not used, the next save of an evicted entity writes it completely.
+ */
+public class DirtyTracker {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 100_000;
+    public static final long DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final SessionFactoryImplementor sessionFactory;
+    private final EntityPersister persister;
+    private final DataMetrics metrics;
+    private final Cache<String, Object[]> snapshots;
+
+    /**
+     * Creates a new dirty tracker remembering at most {@link #DEFAULT_MAXIMUM_SIZE} states
+     *
+     * @param sessionFactory the session factory the type is mapped in
+     * @param type           the type of entity
+     * @param metrics        the metrics the save results are recorded in
+     */
+    public DirtyTracker(@NotNull SessionFactory sessionFactory, @NotNull Class<?> type, @NotNull DataMetrics metrics) {
+        this(sessionFactory, type, metrics, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new dirty tracker
+     *
+     * @param sessionFactory    the session factory the type is mapped in
+     * @param type              the type of entity
+     * @param metrics           the metrics the save results are recorded in
+     * @param maximumSize       the maximum amount of remembered states
+     * @param expireAfterAccess the time after which states that have not been used are forgotten
+     * @param unit              the unit of expireAfterAccess
+     */
+    public DirtyTracker(@NotNull SessionFactory sessionFactory, @NotNull Class<?> type, @NotNull DataMetrics metrics,
+                        long maximumSize, long expireAfterAccess, @NotNull TimeUnit unit) {
+        this.sessionFactory = sessionFactory.unwrap(SessionFactoryImplementor.class);
+        this.persister = this.sessionFactory.getMetamodel().entityPersister(type);
+        this.metrics = metrics;
+        this.snapshots = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess, unit)
+                .build();
+    }
+
+    /**
+     * Copies the current state of an entity
+     *
+     * @param entity the entity
+     * @return the copied property values
+     */
+    public Object[] state(@NotNull Object entity) {
+        Object[] values = this.persister.getPropertyValues(entity);
+        Type[] types = this.persister.getPropertyTypes();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = types[i].deepCopy(values[i], this.sessionFactory);
+        }
+        return values;
+    }
+
+    /**
+     * Compares a state with the last persisted state of an entity
+     *
+     * @param id    the id of the entity
+     * @param state the current state of the entity
+     * @return the indices of the changed properties, empty if nothing changed,
+     * or null if the last persisted state is unknown
+     */
+    @Nullable
+    public int[] dirtyProperties(@NotNull String id, @NotNull Object[] state) {
+        Object[] snapshot = this.snapshots.getIfPresent(id);
+        if (snapshot == null) {
+            return null;
+        }
+        Type[] types = this.persister.getPropertyTypes();
+        int[] dirty = new int[state.length];
+        int count = 0;
+        for (int i = 0; i < state.length; i++) {
+            if (types[i].isCollectionType() || !types[i].isEqual(snapshot[i], state[i])) {
+                dirty[count++] = i;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(dirty, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Checks if the given properties can be written with a single update statement instead of writing the whole entity.
+     * Versioned entities, entities without a single id property (e.g. using {@link javax.persistence.IdClass})
+     * and properties mapping associations or components always need a full write.
+     *
+     * @param properties the indices of the properties
+     * @return true if an update of only these properties is possible
+     */
+    public boolean canUpdate(@NotNull int[] properties) {
+        if (this.persister.isVersioned() || getIdPropertyName() == null) {
+            return false;
+        }
+        Type[] types = this.persister.getPropertyTypes();
+        for (int property : properties) {
+            if (types[property].isAssociationType() || types[property].isComponentType()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the state of an entity as persisted
+     *
+     * @param id    the id of the entity
+     * @param state the persisted state
+     */
+    public void snapshot(@NotNull String id, @NotNull Object[] state) {
+        this.snapshots.put(id, state);
+    }
+
+    /**
+     * Remembers the current state of an entity as persisted
+     *
+     * @param id     the id of the entity
+     * @param entity the persisted entity
+     */
+    public void snapshot(@NotNull String id, @NotNull Object entity) {
+        snapshot(id, state(entity));
+    }
+
+    /**
+     * Records a committed save and remembers its state
+     *
+     * @param change the committed change
+     */
+    public void commit(@NotNull Change change) {
+        snapshot(change.id, change.state);
+        this.metrics.record(change.result);
+    }
+
+    /**
+     * Forgets the persisted state of an entity, e.g. once it is no longer used.
+     * The next save of the entity writes it completely.
+     *
+     * @param id the id of the entity
+     */
+    public void forget(@NotNull String id) {
+        this.snapshots.invalidate(id);
+    }
+
+    /**
+     * Forgets the persisted state of all entities
+     */
+    public void forgetAll() {
+        this.snapshots.invalidateAll();
+    }
+
+    /**
+     * Gets the approximate amount of entities with a remembered state
+     *
+     * @return the amount of entities
+     */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, this.snapshots.estimatedSize());
+    }
+
+    /**
+     * Gets the names of the mapped properties, in the order used by states
+     *
+     * @return the property names
+     */
+    public String[] getPropertyNames() {
+        return this.persister.getPropertyNames();
+    }
+
+    /**
+     * Gets the name of the id property
+     *
+     * @return the id property name, null if the entity has no single id property
+     */
+    public @Nullable String getIdPropertyName() {
+        return this.persister.getIdentifierPropertyName();
+    }
+
+    /**
+     * A written state of an entity that is remembered once its transaction committed
+     */
+    public static final class Change {
+
+        private final String id;
+        private final Object[] state;
+        private final DataMetrics.SaveResult result;
+
+        public Change(@NotNull String id, @NotNull Object[] state, @NotNull DataMetrics.SaveResult result) {
+            this.id = id;
+            this.state = state;
+            this.result = result;
+        }
+
+        /**
+         * @return how the entity was written
+         */
+        public DataMetrics.SaveResult getResult() {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+
+/**
+ * Converts entities to bytes and back, used by data handlers that don't use an ORM
+ *
+ * @param <T> the type of entity
+ */
+public interface EntitySerializer<T> {
+
+    /**
+     * Serializes an entity
+     *
+     * @param entity the entity
+     * @return the serialized entity
+     * @throws IOException if the entity can't be serialized
+     */
+    byte[] serialize(@NotNull T entity) throws IOException;
+
+    /**
+     * Deserializes an entity
+     *
+     * @param data the serialized entity
+     * @return the entity
+     * @throws IOException if the data can't be deserialized
+     */
+    T deserialize(byte[] data) throws IOException;
+
+    /**
+     * Creates a serializer using Java serialization
+     *
+     * @param <T> the type of entity
+     * @return the serializer
+     */
+    static <T extends Serializable> EntitySerializer<T> serializable() {
+        return new EntitySerializer<T>() {
+            @Override
+            public byte[] serialize(@NotNull T entity) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                    output.writeObject(entity);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T deserialize(byte[] data) throws IOException {
+                try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    return (T) input.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+}
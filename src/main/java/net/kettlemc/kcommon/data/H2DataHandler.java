@@ -0,0 +1,55 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.function.Function;
+
+/**
+ * A data handler that stores entities in an embedded H2 database file instead of a database server.
+ * Useful for single servers and test environments, requires the H2 driver at runtime.
+ *
+ * @param <T> the type of entity
+ */
+public class H2DataHandler<T> extends HibernateDataHandler<T> {
+
+    protected final File file;
+
+    /**
+     * Creates a new H2DataHandler
+     *
+     * @param type                  the type of entity
+     * @param defaultEntityProvider a provider for the default entity
+     * @param file                  the database file, H2 appends the .mv.db extension
+     */
+    public H2DataHandler(Class<T> type, Function<String, T> defaultEntityProvider, @NotNull File file) {
+        super(type, defaultEntityProvider, null, null, null, "sa", "");
+        this.file = file;
+
+        setProperty("hibernate.connection.url", "jdbc:h2:file:" + file.getAbsolutePath() + ";MODE=MariaDB;DATABASE_TO_LOWER=TRUE");
+        setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+        setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        // There is no network round trip, so a few connections are enough
+        setProperty("hibernate.hikari.minimumIdle", "1");
+        setProperty("hibernate.hikari.maximumPoolSize", "4");
+    }
+
+    /**
+     * Creates a new H2DataHandler
+     *
+     * @param type the type of entity
+     * @param file the database file, H2 appends the .mv.db extension
+     */
+    public H2DataHandler(Class<T> type, @NotNull File file) {
+        this(type, (id) -> null, file);
+    }
+
+    /**
+     * Gets the database file
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return this.file;
+    }
+}
@@ -1,19 +1,36 @@
 package net.kettlemc.kcommon.data;
 
-import org.hibernate.HibernateException;
-import org.hibernate.Session;
-import org.hibernate.SessionFactory;
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import org.hibernate.*;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.query.Query;
+import org.hibernate.stat.CacheRegionStatistics;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.persistence.Entity;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * A data handler that uses Hibernate to save and load entities
@@ -23,6 +40,15 @@ import java.util.logging.Logger;
 public class HibernateDataHandler<T> implements DataHandler<T> {
 
     private static final Logger LOGGER = Logger.getLogger(HibernateDataHandler.class.getName());
+    private static final int MULTI_LOAD_BATCH_SIZE = 500;
+    private static final int MAXIMUM_POOL_SIZE = 15;
+    private static final int VIRTUAL_WORKER_THREADS = 256;
+    private static final String CACHING_PROVIDER = "com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider";
+    private static final String QUERY_CACHE_REGION = "default-query-results-region";
+    private static final String TIMESTAMPS_CACHE_REGION = "default-update-timestamps-region";
+    private static final long JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // The time closing waits for tasks that were still running when the queue was drained
+    private static final long TASK_TERMINATION_TIMEOUT_SECONDS = 10;
 
     protected final Class<?> type;
     protected final String sqlHost;
@@ -31,8 +57,44 @@ public class HibernateDataHandler<T> implements DataHandler<T> {
     protected final String sqlUser;
     protected final String sqlPassword;
     protected final Function<String, T> defaultEntityProvider;
+    protected final DataMetrics metrics = new DataMetrics(() -> this.dataThreadHandler == null ? 0 : this.dataThreadHandler.getQueueSize(), this::poolStats);
     protected SessionFactory sessionFactory;
     protected DataThreadHandler dataThreadHandler;
+    protected String poolName;
+    protected Executor callbackExecutor;
+    protected int workerThreads = 1;
+    protected boolean virtualThreads = false;
+    protected int batchSize = 1;
+    protected int queueCapacity = Integer.MAX_VALUE;
+    protected DataThreadHandler.OverloadPolicy overloadPolicy = DataThreadHandler.OverloadPolicy.BLOCK;
+    protected long writeBehindMillis = 0;
+    protected ScheduledExecutorService writeBehindScheduler;
+    protected boolean dirtyTracking = false;
+    protected long dirtyTrackingMaximumSize = DirtyTracker.DEFAULT_MAXIMUM_SIZE;
+    protected long dirtyTrackingExpireMillis = DirtyTracker.DEFAULT_EXPIRE_AFTER_ACCESS_MILLIS;
+    protected DirtyTracker dirtyTracker;
+    protected boolean upsert = false;
+    protected UpsertStatement upsertStatement;
+    protected boolean sharedSessionFactory = false;
+    protected boolean schemaManagement = false;
+    protected Map<String, String> pendingSchemaHashes;
+    protected long cacheSize = 0;
+    protected long cacheExpireAfterWriteMillis = 0;
+    protected InvalidationBus invalidationBus;
+    protected InvalidationBus.Subscription invalidationSubscription;
+    protected File journalDirectory;
+    protected EntitySerializer<T> journalSerializer;
+    protected long journalSyncMillis;
+    protected SaveJournal journal;
+    protected long shutdownTimeoutMillis = 0;
+    protected Set<String> unflushedIds = Collections.emptySet();
+    protected volatile BooleanSupplier availabilityCheck;
+    protected volatile boolean bootstrapping = false;
+    protected final List<DeferredOperation<?>> deferredOperations = new ArrayList<>();
+    protected final Map<String, String> properties = new LinkedHashMap<>();
+    protected final Map<String, PendingSave<T>> pendingSaves = new ConcurrentHashMap<>();
+    protected final Map<String, CompletableFuture<T>> inFlightLoads = new ConcurrentHashMap<>();
+    protected final Map<String, CompletableFuture<T>> inFlightCreates = new ConcurrentHashMap<>();
 
     /**
      * Creates a new HibernateDataHandler
@@ -73,65 +135,1094 @@ public class HibernateDataHandler<T> implements DataHandler<T> {
         this(type, (id) -> null, sqlHost, sqlPort, sqlDatabase, sqlUser, sqlPassword);
     }
 
+    /**
+     * Sets a Hibernate property, overriding the default configuration (e.g. the connection url or dialect)
+     *
+     * @param key   the key of the property
+     * @param value the value of the property
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setProperty(@NotNull String key, @NotNull String value) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.properties.put(key, value);
+        return this;
+    }
+
+    /**
+     * Sets the executor the returned futures are completed on, so dependent actions run on that executor
+     * instead of the data thread (e.g. {@link net.kettlemc.kcommon.bukkit.BukkitMainThreadExecutor}).
+     *
+     * @param callbackExecutor the executor, null to complete futures on the data thread (default)
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setCallbackExecutor(@Nullable Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    /**
+     * Sets the amount of worker threads used for data operations.
+     * Operations on the same entity id are always executed in order, operations on different ids may run in parallel.
+     * Should not exceed the maximum size of the connection pool.
+     *
+     * @param workerThreads the amount of worker threads (default 1)
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setWorkerThreads(int workerThreads) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Worker threads must be at least 1");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Enables running data operations on virtual threads if the JVM supports them (Java 21 or newer).
+     * Many virtual workers are used, while the amount of operations running at the same time is limited
+     * to the size of the connection pool. On older JVMs the configured worker threads are used instead.
+     *
+     * @param virtualThreads true to use virtual threads if supported
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setVirtualThreads(boolean virtualThreads) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of queued saves written in a single transaction.
+     * Also enables JDBC batching with ordered inserts and updates using the same size.
+     *
+     * @param batchSize the maximum amount of saves per transaction, 1 to write every save in its own transaction (default)
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setBatchSize(int batchSize) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Limits the amount of queued data operations. Loads are executed before saves, and bulk operations
+     * like {@link #loadAll()} come last.
+     *
+     * @param capacity       the maximum amount of queued operations
+     * @param overloadPolicy what to do if an operation is queued while the queue is full,
+     *                       {@link DataThreadHandler.OverloadPolicy#COALESCE} merges saves of the same entity
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setQueueCapacity(int capacity, @NotNull DataThreadHandler.OverloadPolicy overloadPolicy) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        this.queueCapacity = capacity;
+        this.overloadPolicy = overloadPolicy;
+        return this;
+    }
+
+    /**
+     * Enables write-behind saving. Saves of the same entity within the given window are collapsed into a single write
+     * of the latest state, the futures of all collapsed saves complete once that write happened.
+     * Loads of an entity with a pending write return the pending state instead of the outdated one in the database.
+     *
+     * @param window the time to wait for further saves before writing, 0 to write every save immediately (default)
+     * @param unit   the unit of the window
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setWriteBehind(long window, @NotNull TimeUnit unit) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("Write-behind window must not be negative");
+        }
+        this.writeBehindMillis = unit.toMillis(window);
+        return this;
+    }
+
+    /**
+     * Enables dirty tracking. The last persisted state of loaded and saved entities is remembered,
+     * saves of unchanged entities are skipped and only changed columns are updated.
+     * How saves were written is reported by {@link DataMetrics#getSaveCount(DataMetrics.SaveResult)}.
+     * The states of entities not used for an hour are forgotten, see {@link #setDirtyTracking(long, long, TimeUnit)} to change the limits.
+     *
+     * @param dirtyTracking true to enable dirty tracking
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setDirtyTracking(boolean dirtyTracking) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.dirtyTracking = dirtyTracking;
+        return this;
+    }
+
+    /**
+     * Enables dirty tracking, remembering the persisted state of a limited amount of entities.
+     * Forgotten entities are written completely on their next save.
+     *
+     * @param maximumSize       the maximum amount of remembered states (default {@link DirtyTracker#DEFAULT_MAXIMUM_SIZE})
+     * @param expireAfterAccess the time after which states that have not been used are forgotten (default one hour)
+     * @param unit              the unit of expireAfterAccess
+     * @return this data handler
+     * @see #setDirtyTracking(boolean)
+     */
+    public HibernateDataHandler<T> setDirtyTracking(long maximumSize, long expireAfterAccess, @NotNull TimeUnit unit) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (maximumSize < 1 || expireAfterAccess < 1) {
+            throw new IllegalArgumentException("Maximum size and expiry must be at least 1");
+        }
+        this.dirtyTracking = true;
+        this.dirtyTrackingMaximumSize = maximumSize;
+        this.dirtyTrackingExpireMillis = unit.toMillis(expireAfterAccess);
+        return this;
+    }
+
+    /**
+     * Writes saves with a native {@code INSERT ... ON DUPLICATE KEY UPDATE} instead of {@link Session#saveOrUpdate(Object)},
+     * which saves the select Hibernate issues for entities with assigned ids. Batched saves are sent as JDBC batches,
+     * which the driver rewrites to multi-row statements unless a connection url without {@code rewriteBatchedStatements=true} is set.
+     * Entity types whose mapping can't be upserted (see {@link UpsertStatement#of(SessionFactory, Class)}) keep using saveOrUpdate.
+     *
+     * @param upsert true to upsert saves
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setUpsert(boolean upsert) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Shares the session factory and connection pool with all other handlers using the same database and credentials,
+     * instead of building a factory and pool per entity type. All sharing handlers have to be configured before the first one
+     * is initialized, the properties of that handler (including the pool size) are used for the shared factory.
+     * Has to be called after changing connection properties with {@link #setProperty(String, String)}.
+     *
+     * @param sharedSessionFactory true to share the session factory
+     * @return this data handler
+     * @see SessionFactoryRegistry
+     */
+    public HibernateDataHandler<T> setSharedSessionFactory(boolean sharedSessionFactory) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.sharedSessionFactory = sharedSessionFactory;
+        if (sharedSessionFactory) {
+            SessionFactoryRegistry.getInstance().register(connectionUrl(), connectionUser(), connectionPassword(), this.type);
+        }
+        return this;
+    }
+
+    /**
+     * Enables schema management. The hashes of the entity mappings are recorded in the {@link SchemaManager#TABLE} table,
+     * Hibernate only inspects and updates the schema on startup if a mapping changed.
+     * The hashes are only recorded if the update succeeded, a failed statement fails the initialization.
+     * Does nothing if {@code hibernate.hbm2ddl.auto} is set as property.
+     *
+     * @param schemaManagement true to enable schema management
+     * @return this data handler
+     * @see #getSchemaManager()
+     */
+    public HibernateDataHandler<T> setSchemaManagement(boolean schemaManagement) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.schemaManagement = schemaManagement;
+        return this;
+    }
+
+    /**
+     * Enables Hibernate's second-level cache for the entity type and the query cache for {@link #loadAll()}, using in-heap Caffeine caches.
+     * Useful for read-mostly entities, as loads of cached entities don't hit the database.
+     * Also enables Hibernate statistics, which are used for {@link #getCacheHitRatios()}.
+     *
+     * @param maximumSize      the maximum amount of cached entities and query results per region
+     * @param expireAfterWrite the time after which cached entries expire
+     * @param unit             the unit of the time
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setSecondLevelCache(long maximumSize, long expireAfterWrite, @NotNull TimeUnit unit) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (maximumSize < 1 || expireAfterWrite < 1) {
+            throw new IllegalArgumentException("Maximum size and expiration must be at least 1");
+        }
+        this.cacheSize = maximumSize;
+        this.cacheExpireAfterWriteMillis = unit.toMillis(expireAfterWrite);
+        return this;
+    }
+
+    /**
+     * Sets the bus changed entities are published on once their save committed, so other servers can invalidate their caches.
+     * The class name of the entity type is used as channel. If the second-level cache is enabled,
+     * entities changed by other servers are evicted from it.
+     *
+     * @param invalidationBus the bus, null to not publish changes (default)
+     * @return this data handler
+     * @see CachedDataHandler#setInvalidationBus(InvalidationBus, String)
+     */
+    public HibernateDataHandler<T> setInvalidationBus(@Nullable InvalidationBus invalidationBus) {
+        if (this.invalidationSubscription != null) {
+            this.invalidationSubscription.close();
+            this.invalidationSubscription = null;
+        }
+        this.invalidationBus = invalidationBus;
+        if (invalidationBus != null) {
+            // The cache may be enabled after the bus was set, so it is checked once a change arrives
+            this.invalidationSubscription = invalidationBus.subscribe(this.type.getName(), id -> {
+                if (this.cacheSize > 0 && initialized()) {
+                    this.sessionFactory.getCache().evictEntityData(this.type, id);
+                    this.sessionFactory.getCache().evictDefaultQueryRegion();
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Fails queued operations instead of executing them while the database is known to be unavailable,
+     * so they don't wait for a connection one after another, e.g. while a {@link CircuitBreakerDataHandler} is open.
+     *
+     * @param availabilityCheck a check returning false while the database is unavailable, null to always execute operations (default)
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setAvailabilityCheck(@Nullable BooleanSupplier availabilityCheck) {
+        this.availabilityCheck = availabilityCheck;
+        return this;
+    }
+
+    /**
+     * Checks if queued operations should be executed, see {@link #setAvailabilityCheck(BooleanSupplier)}
+     *
+     * @return false if the database is known to be unavailable
+     */
+    protected boolean available() {
+        BooleanSupplier check = this.availabilityCheck;
+        return check == null || check.getAsBoolean();
+    }
+
+    /**
+     * Enables the write-ahead journal. Every save is appended to a local journal before it is queued and removed once it was committed,
+     * saves left in the journal after a crash are written to the database on the next initialization.
+     * Makes it safe to buffer saves for a long time, e.g. with {@link #setWriteBehind(long, TimeUnit)}.
+     *
+     * @param directory    the directory of the journal, has to be unique per entity type
+     * @param serializer   the serializer used to store entities in the journal, e.g. {@link EntitySerializer#serializable()}
+     * @param syncInterval the interval in which the journal is synced to disk, saves survive a crash of the machine once synced
+     * @param unit         the unit of the interval
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setJournal(@NotNull File directory, @NotNull EntitySerializer<T> serializer, long syncInterval, @NotNull TimeUnit unit) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (syncInterval < 1) {
+            throw new IllegalArgumentException("Sync interval must be at least 1");
+        }
+        this.journalDirectory = directory;
+        this.journalSerializer = serializer;
+        this.journalSyncMillis = unit.toMillis(syncInterval);
+        return this;
+    }
+
+    /**
+     * Limits the time {@link #close()} waits for queued saves. By default the queue is drained on the closing thread without a deadline.
+     * With a timeout the queue is drained in parallel with one thread per pooled connection, saves that were not started before
+     * the deadline are dropped and their ids are logged and returned by {@link #getUnflushedIds()}.
+     * With a journal they are kept in the journal and written on the next initialization.
+     *
+     * @param timeout the maximum time to wait for queued saves when closing
+     * @param unit    the unit of the timeout
+     * @return this data handler
+     */
+    public HibernateDataHandler<T> setShutdownTimeout(long timeout, @NotNull TimeUnit unit) {
+        if (initialized()) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Timeout must be at least 1");
+        }
+        this.shutdownTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Gets the ids of the entities whose queued saves could not be written before the shutdown deadline.
+     * The futures of those saves and of all other dropped operations are completed with a {@link RejectedExecutionException}.
+     *
+     * @return the ids, empty before the handler was closed
+     */
+    public Set<String> getUnflushedIds() {
+        return this.unflushedIds;
+    }
+
+    @Override
+    public CompletableFuture<T> save(@NotNull T entity) {
+        CompletableFuture<T> deferred = defer(() -> save(entity));
+        if (deferred != null) {
+            return deferred;
+        }
+        if (!initialized()) {
+            throw new IllegalStateException("HibernateDataHandler not initialized!");
+        }
+
+        String id = idOf(entity);
+        forgetInFlightLoads(id);
+        SaveJournal.Entry entry = journal(id, entity);
+        if (this.writeBehindScheduler == null) {
+            PendingSave<T> save = new PendingSave<>(entity);
+            commitOnWrite(entry, save.future);
+            this.dataThreadHandler.queue(id, new SaveTask(id, save));
+            return callback(save.future);
+        }
+
+        AtomicBoolean created = new AtomicBoolean(false);
+        PendingSave<T> pending = this.pendingSaves.compute(id, (key, existing) -> {
+            if (existing == null) {
+                created.set(true);
+                return new PendingSave<>(entity);
+            }
+            existing.entity = entity;
+            return existing;
+        });
+        commitOnWrite(entry, pending.future);
+        if (created.get()) {
+            scheduleFlush(id);
+        }
+        return callback(pending.future);
+    }
+
+    /**
+     * Stops sharing the loads of an entity that are in flight, they were queued before a save and would return the outdated state.
+     * Later loads are queued after the save instead.
+     *
+     * @param id the id of the entity
+     */
+    protected void forgetInFlightLoads(@NotNull String id) {
+        this.inFlightLoads.remove(id);
+        this.inFlightCreates.remove(id);
+    }
+
+    /**
+     * Appends a save to the journal
+     *
+     * @param id     the id of the entity
+     * @param entity the entity
+     * @return the journal entry or null if the journal is disabled or the save couldn't be appended
+     */
+    protected SaveJournal.Entry journal(@NotNull String id, @NotNull T entity) {
+        if (this.journal == null) {
+            return null;
+        }
+        try {
+            return this.journal.append(id, this.journalSerializer.serialize(entity));
+        } catch (IOException | RuntimeException exception) {
+            LOGGER.warning("Could not append the save of " + id + " to the journal: " + exception.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Commits a journal entry once the save was written successfully
+     *
+     * @param entry  the journal entry or null
+     * @param future the future completed once the save was written
+     */
+    protected void commitOnWrite(@Nullable SaveJournal.Entry entry, @NotNull CompletableFuture<T> future) {
+        if (entry != null) {
+            future.whenComplete((written, throwable) -> {
+                if (throwable == null) {
+                    this.journal.commit(entry);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the uncommitted saves left in the journal by a previous run to the database.
+     * Saves that could not be written stay in the journal and are replayed again on the next initialization.
+     *
+     * @throws IOException if the journal can't be read
+     */
+    protected void replayJournal() throws IOException {
+        Map<String, byte[]> entries = this.journal.recover();
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info("Replaying " + entries.size() + " saves from the journal");
+        List<PendingSave<T>> saves = new ArrayList<>(entries.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            try {
+                PendingSave<T> save = new PendingSave<>(this.journalSerializer.deserialize(entry.getValue()));
+                save.future.thenRun(() -> this.journal.commitRecovered(entry.getKey()));
+                saves.add(save);
+            } catch (IOException | RuntimeException exception) {
+                LOGGER.warning("Could not read the save of " + entry.getKey() + " from the journal: " + exception.getMessage());
+            }
+        }
+        for (int i = 0; i < saves.size(); i += this.batchSize) {
+            write(saves.subList(i, Math.min(i + this.batchSize, saves.size())));
+        }
+
+        long failed = entries.size() - saves.stream().filter(save -> save.future.isDone() && !save.future.isCompletedExceptionally()).count();
+        if (failed > 0) {
+            LOGGER.warning(failed + " saves of the journal could not be written, they are replayed again on the next initialization");
+        }
+    }
+
+    /**
+     * Gets the latest state of an entity that was saved in write-behind mode but not written yet
+     *
+     * @param id the id of the entity
+     * @return the pending state or null if no write is pending
+     */
+    protected @Nullable T pendingEntity(@NotNull String id) {
+        PendingSave<T> pending = this.pendingSaves.get(id);
+        return pending != null ? pending.entity : null;
+    }
+
+    /**
+     * Queues the write of the latest pending state of an entity once the write-behind window has passed.
+     * If the queue rejects the write, it is tried again after another window.
+     *
+     * @param id the id of the entity
+     */
+    protected void scheduleFlush(@NotNull String id) {
+        this.writeBehindScheduler.schedule(() -> {
+            try {
+                this.dataThreadHandler.queue(id, new SaveTask(id, null));
+            } catch (RejectedExecutionException exception) {
+                scheduleFlush(id);
+            }
+        }, this.writeBehindMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes multiple entities in a single transaction, flushing and clearing the session after every batch.
+     * If the transaction fails, every entity is written again in its own transaction,
+     * so a single failing entity does not fail the whole batch.
+     *
+     * @param saves the entities to write and the futures to complete
+     */
+    protected void write(@NotNull List<PendingSave<T>> saves) {
+        if (saves.size() == 1) {
+            write(saves.get(0).entity, saves.get(0).future);
+            return;
+        }
+
+        Session session = this.sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            List<DirtyTracker.Change> changes = new ArrayList<>(saves.size());
+            List<T> upserts = new ArrayList<>();
+            for (int i = 0; i < saves.size(); i++) {
+                changes.add(persist(session, saves.get(i).entity, upserts));
+                if ((i + 1) % this.batchSize == 0) {
+                    upsert(session, upserts);
+                    session.flush();
+                    session.clear();
+                }
+            }
+            upsert(session, upserts);
+            session.getTransaction().commit();
+            for (int i = 0; i < saves.size(); i++) {
+                commit(changes.get(i));
+                publish(saves.get(i).entity, changes.get(i));
+            }
+            saves.forEach(save -> save.future.complete(save.entity));
+            return;
+        } catch (RuntimeException exception) {
+            if (session.getTransaction().isActive()) {
+                session.getTransaction().rollback();
+            }
+            LOGGER.warning("Batch write of " + saves.size() + " entities failed, writing them one by one: " + exception.getMessage());
+        } finally {
+            session.close();
+        }
+
+        saves.forEach(save -> write(save.entity, save.future));
+    }
+
+    /**
+     * Writes an entity to the database in its own transaction and completes the future afterwards
+     *
+     * @param entity the entity to write
+     * @param future the future to complete
+     */
+    protected void write(@NotNull T entity, @NotNull CompletableFuture<T> future) {
+        Session session = this.sessionFactory.openSession();
+        try {
+            session.beginTransaction();
+            List<T> upserts = new ArrayList<>(1);
+            DirtyTracker.Change change = persist(session, entity, upserts);
+            upsert(session, upserts);
+            session.getTransaction().commit();
+            commit(change);
+            publish(entity, change);
+            future.complete(entity);
+        } catch (RuntimeException exception) {
+            if (session.getTransaction().isActive()) {
+                session.getTransaction().rollback();
+            }
+            future.completeExceptionally(exception);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Writes an entity in the given session. If dirty tracking is enabled, unchanged entities are skipped
+     * and only the changed columns are updated if possible.
+     *
+     * @param session the session
+     * @param entity  the entity to write
+     * @param upserts the entities to upsert in a batch later, entities are added instead of writing them if upserting is enabled
+     * @return the change to commit to the dirty tracker once the transaction committed, null if dirty tracking is disabled
+     */
+    protected DirtyTracker.Change persist(@NotNull Session session, @NotNull T entity, @NotNull List<T> upserts) {
+        if (this.dirtyTracker == null) {
+            saveOrUpsert(session, entity, upserts);
+            return null;
+        }
+
+        String id = idOf(entity);
+        Object[] state = this.dirtyTracker.state(entity);
+        int[] dirty = this.dirtyTracker.dirtyProperties(id, state);
+        if (dirty != null && dirty.length == 0) {
+            return new DirtyTracker.Change(id, state, DataMetrics.SaveResult.SKIPPED);
+        }
+        if (dirty != null && this.dirtyTracker.canUpdate(dirty)) {
+            // Earlier upserts of the same entity must not overwrite this update
+            upsert(session, upserts);
+            if (update(session, entity, state, dirty)) {
+                return new DirtyTracker.Change(id, state, DataMetrics.SaveResult.PARTIAL);
+            }
+        }
+        saveOrUpsert(session, entity, upserts);
+        return new DirtyTracker.Change(id, state, DataMetrics.SaveResult.FULL);
+    }
+
+    private void saveOrUpsert(@NotNull Session session, @NotNull T entity, @NotNull List<T> upserts) {
+        if (this.upsertStatement != null) {
+            upserts.add(entity);
+        } else {
+            session.saveOrUpdate(entity);
+        }
+    }
+
+    /**
+     * Upserts the collected entities as a JDBC batch and clears the list
+     *
+     * @param session the session
+     * @param upserts the entities to upsert
+     */
+    protected void upsert(@NotNull Session session, @NotNull List<T> upserts) {
+        if (this.upsertStatement != null && !upserts.isEmpty()) {
+            this.upsertStatement.execute(session, upserts, this.batchSize);
+            if (this.cacheSize > 0) {
+                // Native statements bypass the second-level cache
+                upserts.forEach(entity -> this.sessionFactory.getCache().evictEntityData(this.type, (Serializable) this.sessionFactory.getPersistenceUnitUtil().getIdentifier(entity)));
+                this.sessionFactory.getCache().evictDefaultQueryRegion();
+            }
+            upserts.clear();
+        }
+    }
+
+    /**
+     * Updates only the given properties of an entity
+     *
+     * @param session    the session
+     * @param entity     the entity
+     * @param state      the current state of the entity
+     * @param properties the indices of the properties to update
+     * @return false if the row of the entity doesn't exist
+     */
+    private boolean update(@NotNull Session session, @NotNull T entity, @NotNull Object[] state, @NotNull int[] properties) {
+        String[] names = this.dirtyTracker.getPropertyNames();
+        StringBuilder statement = new StringBuilder("UPDATE ").append(entityName()).append(" SET ");
+        for (int i = 0; i < properties.length; i++) {
+            if (i > 0) {
+                statement.append(", ");
+            }
+            statement.append(names[properties[i]]).append(" = :p").append(i);
+        }
+        statement.append(" WHERE ").append(this.dirtyTracker.getIdPropertyName()).append(" = :id");
+
+        Query<?> query = session.createQuery(statement.toString());
+        for (int i = 0; i < properties.length; i++) {
+            query.setParameter("p" + i, state[properties[i]]);
+        }
+        query.setParameter("id", this.sessionFactory.getPersistenceUnitUtil().getIdentifier(entity));
+        return query.executeUpdate() > 0;
+    }
+
+    /**
+     * Remembers the state written by a committed transaction
+     *
+     * @param change the change returned by {@link #persist(Session, Object, List)}, null if dirty tracking is disabled
+     */
+    protected void commit(@Nullable DirtyTracker.Change change) {
+        if (change != null && this.dirtyTracker != null) {
+            this.dirtyTracker.commit(change);
+        }
+    }
+
+    /**
+     * Publishes a committed save on the invalidation bus, unless the entity was unchanged
+     *
+     * @param entity the saved entity
+     * @param change the change returned by {@link #persist(Session, Object, List)}, null if dirty tracking is disabled
+     */
+    protected void publish(@NotNull T entity, @Nullable DirtyTracker.Change change) {
+        InvalidationBus bus = this.invalidationBus;
+        if (bus == null || (change != null && change.getResult() == DataMetrics.SaveResult.SKIPPED)) {
+            return;
+        }
+        try {
+            bus.publish(this.type.getName(), idOf(entity));
+        } catch (RuntimeException exception) {
+            LOGGER.warning("Could not publish the invalidation of " + idOf(entity) + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Gets the dirty tracker, e.g. to forget entities that are no longer used
+     *
+     * @return the dirty tracker or null if dirty tracking is disabled
+     */
+    public @Nullable DirtyTracker getDirtyTracker() {
+        return this.dirtyTracker;
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid) {
+        return load(uuid, true);
+    }
+
+    public CompletableFuture<List<T>> loadAll() {
+        CompletableFuture<List<T>> deferred = defer(this::loadAll);
+        if (deferred != null) {
+            return deferred;
+        }
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(DataThreadHandler.Priority.LOW, timed(DataMetrics.Operation.LOAD_ALL, future, () -> {
+            Session session = this.sessionFactory.openSession();
+            try {
+                session.beginTransaction();
+
+                @SuppressWarnings("unchecked")
+                Class<T> entityType = (Class<T>) this.type;
+                List<T> entities = session.createQuery("FROM " + entityName(), entityType)
+                        .setCacheable(this.cacheSize > 0)
+                        .list();
+                if (entities == null || entities.isEmpty()) {
+                    entities = new ArrayList<>();
+                }
+                session.getTransaction().commit();
+                future.complete(entities);
+            } catch (RuntimeException exception) {
+                if (session.getTransaction().isActive()) {
+                    session.getTransaction().rollback();
+                }
+                future.completeExceptionally(exception);
+            } finally {
+                session.close();
+            }
+        }));
+        return callback(future);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, T>> loadMany(@NotNull Collection<String> uuids, boolean createIfNotExists) {
+        CompletableFuture<Map<String, T>> deferred = defer(() -> loadMany(uuids, createIfNotExists));
+        if (deferred != null) {
+            return deferred;
+        }
+        if (!initialized()) {
+            throw new IllegalStateException("HibernateDataHandler not initialized!");
+        }
+
+        Map<String, T> pending = new LinkedHashMap<>();
+        List<String> remaining = new ArrayList<>(uuids.size());
+        // A duplicate id would load or create the same entity twice in one session
+        for (String uuid : new LinkedHashSet<>(uuids)) {
+            T entity = pendingEntity(uuid);
+            if (entity != null) {
+                pending.put(uuid, entity);
+            } else {
+                remaining.add(uuid);
+            }
+        }
+
+        List<CompletableFuture<Map<String, T>>> futures = new ArrayList<>();
+        for (List<String> group : groupByWorker(remaining, uuid -> uuid)) {
+            CompletableFuture<Map<String, T>> future = new CompletableFuture<>();
+            futures.add(future);
+            this.dataThreadHandler.queue(group, DataThreadHandler.Priority.HIGH, timed(DataMetrics.Operation.LOAD_MANY, future, () -> {
+                Session session = this.sessionFactory.openSession();
+                try {
+                    session.beginTransaction();
+                    @SuppressWarnings("unchecked")
+                    List<T> loaded = (List<T>) session.byMultipleIds(this.type)
+                            .withBatchSize(MULTI_LOAD_BATCH_SIZE)
+                            .multiLoad(group);
+
+                    Map<String, T> entities = new LinkedHashMap<>();
+                    for (int i = 0; i < group.size(); i++) {
+                        T entity = loaded.get(i);
+                        if (entity == null && createIfNotExists) {
+                            entity = this.defaultEntityProvider.apply(group.get(i));
+                            if (entity != null) {
+                                session.saveOrUpdate(entity);
+                            }
+                        }
+                        if (entity != null) {
+                            entities.put(group.get(i), entity);
+                        }
+                    }
+                    session.getTransaction().commit();
+                    if (this.dirtyTracker != null) {
+                        entities.forEach(this.dirtyTracker::snapshot);
+                    }
+                    future.complete(entities);
+                } catch (RuntimeException exception) {
+                    if (session.getTransaction().isActive()) {
+                        session.getTransaction().rollback();
+                    }
+                    future.completeExceptionally(exception);
+                } finally {
+                    session.close();
+                }
+            }));
+        }
+
+        return callback(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, T> entities = new LinkedHashMap<>(pending);
+            futures.forEach(future -> entities.putAll(future.join()));
+            return entities;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> saveMany(@NotNull Collection<T> entities) {
+        CompletableFuture<List<T>> deferred = defer(() -> saveMany(entities));
+        if (deferred != null) {
+            return deferred;
+        }
+        if (!initialized()) {
+            throw new IllegalStateException("HibernateDataHandler not initialized!");
+        }
+
+        // Write-behind saves are coalesced per entity anyway
+        if (this.writeBehindScheduler != null) {
+            return DataHandler.super.saveMany(entities);
+        }
+
+        List<CompletableFuture<T>> futures = new ArrayList<>(entities.size());
+        for (List<T> group : groupByWorker(entities, this::idOf)) {
+            List<PendingSave<T>> saves = new ArrayList<>(group.size());
+            List<String> ids = new ArrayList<>(group.size());
+            for (T entity : group) {
+                String id = idOf(entity);
+                forgetInFlightLoads(id);
+                PendingSave<T> save = new PendingSave<>(entity);
+                commitOnWrite(journal(id, entity), save.future);
+                saves.add(save);
+                ids.add(id);
+                futures.add(save.future);
+            }
+            CompletableFuture<Void> written = CompletableFuture.allOf(saves.stream().map(save -> save.future).toArray(CompletableFuture<?>[]::new));
+            this.dataThreadHandler.queue(ids, DataThreadHandler.Priority.LOW, new TimedTask(DataMetrics.Operation.SAVE_MANY, written, () -> write(saves)) {
+                @Override
+                public Collection<String> drop(@NotNull Throwable cause) {
+                    saves.forEach(save -> save.future.completeExceptionally(cause));
+                    return ids;
+                }
+            });
+        }
+
+        return callback(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+    }
+
+    /**
+     * Groups elements by the worker of the data thread handler their id is queued on.
+     * Queueing each group keyed by all of its ids keeps the order of operations per id.
+     *
+     * @param elements   the elements to group
+     * @param idFunction a function returning the id of an element
+     * @param <E>        the type of the elements
+     * @return the groups, none of them empty
+     */
+    protected <E> Collection<List<E>> groupByWorker(@NotNull Collection<E> elements, @NotNull Function<E, String> idFunction) {
+        Map<Integer, List<E>> groups = new LinkedHashMap<>();
+        for (E element : elements) {
+            groups.computeIfAbsent(this.dataThreadHandler.getWorker(idFunction.apply(element)), worker -> new ArrayList<>()).add(element);
+        }
+        return groups.values();
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(int chunkSize, @NotNull Consumer<List<T>> consumer) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        CompletableFuture<Long> deferred = defer(() -> streamAll(chunkSize, consumer));
+        if (deferred != null) {
+            return deferred;
+        }
+
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(DataThreadHandler.Priority.LOW, timed(DataMetrics.Operation.STREAM_ALL, future, () -> {
+            // The MySQL driver only honours the fetch size with a server-side cursor. Cursor fetching also prepares every
+            // statement on the server, so it is only enabled for a separate connection instead of the whole pool.
+            Properties info = new Properties();
+            info.setProperty("useCursorFetch", "true");
+            try (Connection connection = openConnection(info)) {
+                // A stateless session has no persistence context, so streamed entities are not kept in memory
+                StatelessSession session = this.sessionFactory.withStatelessOptions().connection(connection).openStatelessSession();
+                ScrollableResults results = null;
+                try {
+                    session.beginTransaction();
+                    results = session.createQuery("FROM " + entityName())
+                            .setFetchSize(chunkSize)
+                            .setReadOnly(true)
+                            .scroll(ScrollMode.FORWARD_ONLY);
+
+                    long count = 0;
+                    List<T> chunk = new ArrayList<>(chunkSize);
+                    while (results.next()) {
+                        @SuppressWarnings("unchecked")
+                        T entity = (T) results.get(0);
+                        chunk.add(entity);
+                        count++;
+                        if (chunk.size() >= chunkSize) {
+                            consumer.accept(chunk);
+                            chunk = new ArrayList<>(chunkSize);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        consumer.accept(chunk);
+                    }
+                    session.getTransaction().commit();
+                    future.complete(count);
+                } catch (RuntimeException exception) {
+                    if (session.getTransaction().isActive()) {
+                        session.getTransaction().rollback();
+                    }
+                    future.completeExceptionally(exception);
+                } finally {
+                    if (results != null) {
+                        results.close();
+                    }
+                    session.close();
+                }
+            } catch (SQLException exception) {
+                future.completeExceptionally(exception);
+            }
+        }));
+        return callback(future);
+    }
+
     @Override
-    public Future<T> save(@NotNull T entity) {
-        if (!initialized()) {
-            throw new IllegalStateException("HibernateDataHandler not initialized!");
+    public CompletableFuture<T> load(@NotNull String uuid, boolean createIfNotExists) {
+        CompletableFuture<T> deferred = defer(() -> load(uuid, createIfNotExists));
+        if (deferred != null) {
+            return deferred;
         }
 
+        // Unwritten write-behind saves are newer than the state in the database
+        T pending = pendingEntity(uuid);
+        if (pending != null) {
+            return callback(CompletableFuture.completedFuture(pending));
+        }
+
+        // Concurrent loads of the same id share a single database round trip
+        Map<String, CompletableFuture<T>> inFlight = createIfNotExists ? this.inFlightCreates : this.inFlightLoads;
         CompletableFuture<T> future = new CompletableFuture<>();
-        this.dataThreadHandler.queue(() -> {
+        CompletableFuture<T> existing = inFlight.putIfAbsent(uuid, future);
+        if (existing != null) {
+            return callback(existing);
+        }
+
+        Runnable task = new TimedTask(DataMetrics.Operation.LOAD, future, () -> {
             Session session = this.sessionFactory.openSession();
-            session.beginTransaction();
-            session.saveOrUpdate(entity);
-            session.getTransaction().commit();
-            session.close();
-            future.complete(entity);
-        });
-        return future;
+            try {
+                session.beginTransaction();
+                @SuppressWarnings("unchecked")
+                T entity = (T) session.get(this.type, uuid);
+                if (entity == null && createIfNotExists) {
+                    entity = this.defaultEntityProvider.apply(uuid);
+                    if (entity != null) {
+                        session.saveOrUpdate(entity);
+                    }
+                }
+                session.getTransaction().commit();
+                if (this.dirtyTracker != null && entity != null) {
+                    this.dirtyTracker.snapshot(uuid, entity);
+                }
+                inFlight.remove(uuid, future);
+                future.complete(entity);
+            } catch (RuntimeException exception) {
+                if (session.getTransaction().isActive()) {
+                    session.getTransaction().rollback();
+                }
+                inFlight.remove(uuid, future);
+                future.completeExceptionally(exception);
+            } finally {
+                session.close();
+            }
+        }) {
+            @Override
+            public Collection<String> drop(@NotNull Throwable cause) {
+                inFlight.remove(uuid, future);
+                return super.drop(cause);
+            }
+        };
+
+        try {
+            this.dataThreadHandler.queue(uuid, DataThreadHandler.Priority.HIGH, task);
+        } catch (RuntimeException exception) {
+            inFlight.remove(uuid, future);
+            throw exception;
+        }
+        return callback(future);
     }
 
-    @Override
-    public Future<T> load(@NotNull String uuid) {
-        return load(uuid, true);
+    /**
+     * Defers an operation issued while the handler is initialized asynchronously, it is replayed once initialization finished
+     *
+     * @param operation the operation
+     * @param <V>       the type of the result
+     * @return a future completed with the result of the replayed operation, or null if the operation can be executed right away
+     */
+    protected <V> @Nullable CompletableFuture<V> defer(@NotNull Supplier<CompletableFuture<V>> operation) {
+        // Replayed operations are executed while holding the lock
+        if (!this.bootstrapping || Thread.holdsLock(this.deferredOperations)) {
+            return null;
+        }
+        synchronized (this.deferredOperations) {
+            if (!this.bootstrapping) {
+                return null;
+            }
+            DeferredOperation<V> deferred = new DeferredOperation<>(operation);
+            this.deferredOperations.add(deferred);
+            return deferred.future;
+        }
     }
 
-    public Future<List<T>> loadAll() {
-        CompletableFuture<List<T>> future = new CompletableFuture<>();
-        this.dataThreadHandler.queue(() -> {
-            Session session = this.sessionFactory.openSession();
-            session.beginTransaction();
+    /**
+     * Wraps a task so its queue and execution time are recorded in the metrics
+     *
+     * @param operation the type of operation
+     * @param future    the future completed by the task, used to determine if the task failed
+     * @param task      the task
+     * @return the wrapped task
+     */
+    protected Runnable timed(@NotNull DataMetrics.Operation operation, @NotNull CompletableFuture<?> future, @NotNull Runnable task) {
+        return new TimedTask(operation, future, task);
+    }
 
-            String table = this.type.getAnnotation(Entity.class).name();
+    /**
+     * Gets the metrics of this data handler, including the queue size and the connection pool
+     *
+     * @return the metrics
+     */
+    public DataMetrics getMetrics() {
+        return this.metrics;
+    }
 
-            List<T> entities = session.createQuery("FROM " + table).list();
-            if (entities == null || entities.isEmpty()) {
-                entities = new ArrayList<>();
-            }
-            session.getTransaction().commit();
-            session.close();
-            future.complete(entities);
-        });
-        return future;
+    /**
+     * Reads the stats of the connection pool from the MBean registered by Hikari
+     *
+     * @return the stats or null if they are not available
+     */
+    protected DataMetrics.PoolStats poolStats() {
+        if (this.poolName == null) {
+            return null;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName pool = new ObjectName("com.zaxxer.hikari:type=Pool (" + this.poolName + ")");
+            return new DataMetrics.PoolStats(
+                    (Integer) server.getAttribute(pool, "ActiveConnections"),
+                    (Integer) server.getAttribute(pool, "IdleConnections"),
+                    (Integer) server.getAttribute(pool, "ThreadsAwaitingConnection"),
+                    (Integer) server.getAttribute(pool, "TotalConnections"));
+        } catch (JMException | RuntimeException exception) {
+            return null;
+        }
     }
 
-    @Override
-    public Future<T> load(@NotNull String uuid, boolean createIfNotExists) {
-        CompletableFuture<T> future = new CompletableFuture<>();
-        this.dataThreadHandler.queue(() -> {
-            Session session = this.sessionFactory.openSession();
-            session.beginTransaction();
-            @SuppressWarnings("unchecked")
-            T entity = (T) session.get(this.type, uuid);
-            if (entity == null && createIfNotExists) {
-                entity = this.defaultEntityProvider.apply(uuid);
-                session.saveOrUpdate(entity);
+    /**
+     * Creates a future that is completed with the result of the given future on the callback executor.
+     * The internal future is never handed out, so callers can't complete it themselves.
+     *
+     * @param future the internal future
+     * @param <V>    the type of the result
+     * @return the future returned to the caller
+     */
+    protected <V> CompletableFuture<V> callback(@NotNull CompletableFuture<V> future) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        Executor executor = this.callbackExecutor;
+        future.whenComplete((value, throwable) -> {
+            Runnable completion = () -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            };
+            if (executor == null) {
+                completion.run();
+            } else {
+                executor.execute(completion);
             }
-            session.getTransaction().commit();
-            session.close();
-            future.complete(entity);
         });
-        return future;
+        return result;
+    }
+
+    /**
+     * Gets the name of the entity used in queries
+     *
+     * @return the name set in the entity annotation or the simple class name if none is set
+     */
+    protected String entityName() {
+        String name = this.type.getAnnotation(Entity.class).name();
+        return name.isEmpty() ? this.type.getSimpleName() : name;
+    }
+
+    /**
+     * Gets the id of an entity as a String
+     *
+     * @param entity the entity
+     * @return the id of the entity
+     */
+    protected String idOf(@NotNull T entity) {
+        return String.valueOf(this.sessionFactory.getPersistenceUnitUtil().getIdentifier(entity));
     }
 
     @Override
@@ -139,49 +1230,599 @@ public class HibernateDataHandler<T> implements DataHandler<T> {
         return sessionFactory != null && sessionFactory.isOpen();
     }
 
+    /**
+     * Gets the JDBC url of the database
+     *
+     * @return the url set as property or the MariaDB url built from host, port and database
+     */
+    protected String connectionUrl() {
+        return this.properties.getOrDefault("hibernate.connection.url", "jdbc:mysql://" + this.sqlHost + ":" + this.sqlPort + "/" + this.sqlDatabase + "?useSSL=true&rewriteBatchedStatements=true");
+    }
+
+    /**
+     * Gets the database user
+     *
+     * @return the user set as property or the sql user
+     */
+    protected String connectionUser() {
+        return this.properties.getOrDefault("hibernate.connection.username", this.sqlUser);
+    }
+
+    /**
+     * Gets the password of the database user
+     *
+     * @return the password set as property or the sql password
+     */
+    protected String connectionPassword() {
+        return this.properties.getOrDefault("hibernate.connection.password", this.sqlPassword);
+    }
+
+    /**
+     * Creates a schema manager for the database, e.g. to run migrations before initializing
+     *
+     * @return the schema manager
+     */
+    public SchemaManager getSchemaManager() {
+        return new SchemaManager(() -> openConnection(new Properties()));
+    }
+
+    /**
+     * Checks if the database is reachable with a new connection outside the pool,
+     * so the check doesn't wait for the connection timeout of the pool while the database is down.
+     * Can be used as health check of a {@link CircuitBreakerDataHandler}.
+     *
+     * @param timeoutSeconds the maximum time to wait for the connection and the validation
+     * @return true if a connection could be opened and validated
+     */
+    public boolean isReachable(int timeoutSeconds) {
+        Properties info = new Properties();
+        info.setProperty("connectTimeout", String.valueOf(TimeUnit.SECONDS.toMillis(timeoutSeconds)));
+        info.setProperty("socketTimeout", String.valueOf(TimeUnit.SECONDS.toMillis(timeoutSeconds)));
+        try (Connection connection = openConnection(info)) {
+            return connection.isValid(timeoutSeconds);
+        } catch (SQLException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a new connection to the database outside the pool
+     *
+     * @param info the connection properties, the user and password are added
+     * @return the connection
+     * @throws SQLException if the connection can't be opened or the JDBC driver is missing
+     */
+    private Connection openConnection(Properties info) throws SQLException {
+        String driver = this.properties.getOrDefault("hibernate.connection.driver_class", "com.mysql.cj.jdbc.Driver");
+        try {
+            // DriverManager only returns drivers loaded by the class loader of the plugin
+            Class.forName(driver);
+        } catch (ClassNotFoundException exception) {
+            throw new SQLException("JDBC driver not found: " + driver, exception);
+        }
+
+        if (connectionUser() != null) {
+            info.setProperty("user", connectionUser());
+        }
+        if (connectionPassword() != null) {
+            info.setProperty("password", connectionPassword());
+        }
+        return DriverManager.getConnection(connectionUrl(), info);
+    }
+
+    /**
+     * Creates the Hibernate configuration mapping the given types.
+     * If schema management is enabled and the recorded mapping hashes match, the schema is not updated.
+     *
+     * @param types the mapped types
+     * @return the configuration
+     */
+    protected Configuration configuration(@NotNull Collection<Class<?>> types) {
+        Configuration configuration = new Configuration()
+                .setProperty("hibernate.connection.url", connectionUrl())
+                .setProperty("hibernate.connection.username", connectionUser())
+                .setProperty("hibernate.connection.password", connectionPassword())
+                .setProperty("hibernate.connection.driver_class", "com.mysql.cj.jdbc.Driver")
+                .setProperty("hibernate.dialect", "org.hibernate.dialect.MariaDBDialect")
+                .setProperty("hibernate.show_sql", "false")
+                .setProperty("hibernate.hbm2ddl.auto", "update")
+                .setProperty("hibernate.connection.provider_class", "com.zaxxer.hikari.hibernate.HikariConnectionProvider")
+                .setProperty("hibernate.hikari.minimumIdle", "5")
+                .setProperty("hibernate.hikari.maximumPoolSize", String.valueOf(MAXIMUM_POOL_SIZE))
+                .setProperty("hibernate.hikari.idleTimeout", "60000")
+                .setProperty("hibernate.hikari.connectionTimeout", "30000")
+                .setProperty("hibernate.hikari.maxLifetime", "1800000")
+                .setProperty("hibernate.hikari.leakDetectionThreshold", "5000")
+                .setProperty("hibernate.hikari.poolName", this.poolName)
+                .setProperty("hibernate.hikari.registerMbeans", "true")
+                .setProperty("hibernate.current_session_context_class", "thread");
+
+        if (this.batchSize > 1) {
+            configuration.setProperty("hibernate.jdbc.batch_size", String.valueOf(this.batchSize))
+                    .setProperty("hibernate.order_inserts", "true")
+                    .setProperty("hibernate.order_updates", "true")
+                    .setProperty("hibernate.jdbc.batch_versioned_data", "true");
+        }
+        if (this.cacheSize > 0) {
+            configureCache(configuration, types);
+        }
+        this.properties.forEach(configuration::setProperty);
+        types.forEach(configuration::addAnnotatedClass);
+
+        if (this.schemaManagement && !this.properties.containsKey("hibernate.hbm2ddl.auto")) {
+            Map<String, String> hashes = SchemaManager.hashes(types);
+            try {
+                if (getSchemaManager().matches(hashes)) {
+                    configuration.setProperty("hibernate.hbm2ddl.auto", "none");
+                } else {
+                    // Recorded once the session factory updated the schema, which fails instead of skipping failed statements
+                    configuration.setProperty("hibernate.hbm2ddl.halt_on_error", "true");
+                    this.pendingSchemaHashes = hashes;
+                }
+            } catch (SQLException exception) {
+                LOGGER.warning("Could not read the schema version, updating the schema: " + exception.getMessage());
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Initializes the data handler on a new thread, so multiple handlers can be initialized in parallel
+     * without blocking the calling thread. Operations issued before the initialization finished are replayed
+     * in order afterwards, or fail if the initialization failed.
+     *
+     * @return a future containing true if successful
+     */
+    public CompletableFuture<Boolean> initializeAsync() {
+        if (initialized() || this.bootstrapping) {
+            throw new IllegalStateException("HibernateDataHandler already initialized!");
+        }
+        this.bootstrapping = true;
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            boolean success = false;
+            try {
+                success = initialize();
+            } catch (RuntimeException exception) {
+                LOGGER.severe("Initialization failed: " + exception.getMessage());
+                exception.printStackTrace();
+            } finally {
+                synchronized (this.deferredOperations) {
+                    for (DeferredOperation<?> deferred : this.deferredOperations) {
+                        if (success) {
+                            deferred.replay();
+                        } else {
+                            deferred.future.completeExceptionally(new IllegalStateException("HibernateDataHandler initialization failed!"));
+                        }
+                    }
+                    this.deferredOperations.clear();
+                    this.bootstrapping = false;
+                }
+                future.complete(success);
+            }
+        }, "kcommon-data-bootstrap-" + this.type.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+        return callback(future);
+    }
+
+    /**
+     * Configures the second-level and query cache, creating a cache region with the configured size and expiration per type
+     *
+     * @param configuration the configuration
+     * @param types         the mapped types
+     */
+    private void configureCache(@NotNull Configuration configuration, @NotNull Collection<Class<?>> types) {
+        ClassLoader classLoader = HibernateDataHandler.class.getClassLoader();
+        CacheManager cacheManager = Caching.getCachingProvider(CACHING_PROVIDER, classLoader).getCacheManager(URI.create("kcommon:" + this.poolName), classLoader);
+
+        List<String> regions = new ArrayList<>();
+        types.forEach(type -> regions.add(type.getName()));
+        regions.add(QUERY_CACHE_REGION);
+        for (String region : regions) {
+            CaffeineConfiguration<Object, Object> cacheConfiguration = new CaffeineConfiguration<>();
+            cacheConfiguration.setMaximumSize(OptionalLong.of(this.cacheSize));
+            cacheConfiguration.setExpireAfterWrite(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(this.cacheExpireAfterWriteMillis)));
+            cacheConfiguration.setStatisticsEnabled(true);
+            cacheManager.createCache(region, cacheConfiguration);
+        }
+        // Update timestamps must not be evicted, otherwise stale query results could be used
+        CaffeineConfiguration<Object, Object> timestampsConfiguration = new CaffeineConfiguration<>();
+        timestampsConfiguration.setStatisticsEnabled(true);
+        cacheManager.createCache(TIMESTAMPS_CACHE_REGION, timestampsConfiguration);
+
+        configuration.setProperty("hibernate.cache.use_second_level_cache", "true")
+                .setProperty("hibernate.cache.use_query_cache", "true")
+                .setProperty("hibernate.cache.region.factory_class", "jcache")
+                .setProperty("hibernate.javax.cache.missing_cache_strategy", "create-warn")
+                .setProperty("hibernate.cache.default_cache_concurrency_strategy", "read-write")
+                .setProperty("javax.persistence.sharedCache.mode", "ALL")
+                .setProperty("hibernate.generate_statistics", "true");
+        configuration.getProperties().put("hibernate.javax.cache.cache_manager", cacheManager);
+        configuration.setSessionFactoryObserver(new SessionFactoryObserver() {
+            @Override
+            public void sessionFactoryCreated(SessionFactory factory) {
+            }
+
+            @Override
+            public void sessionFactoryClosed(SessionFactory factory) {
+                cacheManager.close();
+            }
+        });
+    }
+
+    /**
+     * Gets the hit ratios of the second-level cache region of the entity type and the query cache region
+     *
+     * @return the hit ratios between 0 and 1 mapped by the region name, empty if the second-level cache is disabled
+     */
+    public Map<String, Double> getCacheHitRatios() {
+        Map<String, Double> ratios = new LinkedHashMap<>();
+        if (this.cacheSize == 0 || !initialized()) {
+            return ratios;
+        }
+        ratios.put(this.type.getName(), hitRatio(this.sessionFactory.getStatistics().getDomainDataRegionStatistics(this.type.getName())));
+        ratios.put(QUERY_CACHE_REGION, hitRatio(this.sessionFactory.getStatistics().getQueryRegionStatistics(QUERY_CACHE_REGION)));
+        return ratios;
+    }
+
+    private static double hitRatio(@Nullable CacheRegionStatistics statistics) {
+        if (statistics == null || statistics.getHitCount() + statistics.getMissCount() == 0) {
+            return 0;
+        }
+        return (double) statistics.getHitCount() / (statistics.getHitCount() + statistics.getMissCount());
+    }
+
     @Override
     public boolean initialize() {
         try {
-            Configuration configuration = new Configuration()
-                    .setProperty("hibernate.connection.url", "jdbc:mysql://" + this.sqlHost + ":" + this.sqlPort + "/" + this.sqlDatabase + "?useSSL=true")
-                    .setProperty("hibernate.connection.username", this.sqlUser)
-                    .setProperty("hibernate.connection.password", this.sqlPassword)
-                    .setProperty("hibernate.connection.driver_class", "com.mysql.cj.jdbc.Driver")
-                    .setProperty("hibernate.dialect", "org.hibernate.dialect.MariaDBDialect")
-                    .setProperty("hibernate.show_sql", "false")
-                    .setProperty("hibernate.hbm2ddl.auto", "update")
-                    .setProperty("hibernate.connection.provider_class", "com.zaxxer.hikari.hibernate.HikariConnectionProvider")
-                    .setProperty("hibernate.hikari.minimumIdle", "5")
-                    .setProperty("hibernate.hikari.maximumPoolSize", "15")
-                    .setProperty("hibernate.hikari.idleTimeout", "60000")
-                    .setProperty("hibernate.hikari.connectionTimeout", "30000")
-                    .setProperty("hibernate.hikari.maxLifetime", "1800000")
-                    .setProperty("hibernate.hikari.leakDetectionThreshold", "5000")
-                    .setProperty("hibernate.hikari.poolName", "HibernatePool-" + Math.abs(UUID.randomUUID().hashCode()))
-                    .setProperty("hibernate.current_session_context_class", "thread")
-                    .addAnnotatedClass(this.type);
-
-            this.sessionFactory = configuration.buildSessionFactory();
+            if (this.sharedSessionFactory) {
+                // Every handler of the same database uses the same pool name, so the pool stats are available to all of them
+                this.poolName = "HibernatePool-" + Integer.toHexString(Objects.hash(connectionUrl(), connectionUser()));
+                this.sessionFactory = SessionFactoryRegistry.getInstance().acquire(connectionUrl(), connectionUser(), connectionPassword(), this.type, this::configuration);
+                if (this.sessionFactory == null) {
+                    LOGGER.warning("The shared session factory was built without " + this.type.getSimpleName() + ", using an own one instead");
+                    this.sharedSessionFactory = false;
+                }
+            }
+            if (this.sessionFactory == null) {
+                this.poolName = "HibernatePool-" + Math.abs(UUID.randomUUID().hashCode());
+                this.sessionFactory = configuration(Collections.singleton(this.type)).buildSessionFactory();
+            }
+            if (this.pendingSchemaHashes != null) {
+                try {
+                    getSchemaManager().record(this.pendingSchemaHashes);
+                } catch (SQLException exception) {
+                    LOGGER.warning("Could not record the schema version: " + exception.getMessage());
+                }
+                this.pendingSchemaHashes = null;
+            }
+            if (this.dirtyTracking) {
+                this.dirtyTracker = new DirtyTracker(this.sessionFactory, this.type, this.metrics,
+                        this.dirtyTrackingMaximumSize, this.dirtyTrackingExpireMillis, TimeUnit.MILLISECONDS);
+            }
+            if (this.upsert) {
+                this.upsertStatement = UpsertStatement.of(this.sessionFactory, this.type);
+                if (this.upsertStatement == null) {
+                    LOGGER.warning("The mapping of " + this.type.getSimpleName() + " can't be upserted, using saveOrUpdate instead");
+                }
+            }
 
             // Improved thread handler initialization to ensure it's not null in edge cases
-            this.dataThreadHandler = new DataThreadHandler();
+            if (this.virtualThreads && DataThreadHandler.isVirtualThreadsSupported()) {
+                this.dataThreadHandler = new DataThreadHandler(VIRTUAL_WORKER_THREADS, this.batchSize, true, maximumPoolSize());
+            } else {
+                this.dataThreadHandler = new DataThreadHandler(this.workerThreads, this.batchSize);
+            }
+            if (this.queueCapacity < Integer.MAX_VALUE) {
+                this.dataThreadHandler.setCapacity(this.queueCapacity, this.overloadPolicy);
+            }
             this.dataThreadHandler.init();
+
+            if (this.writeBehindMillis > 0) {
+                this.writeBehindScheduler = Executors.newSingleThreadScheduledExecutor();
+            }
+            if (this.journalDirectory != null) {
+                this.journal = new SaveJournal(this.journalDirectory, this.journalSyncMillis, JOURNAL_SEGMENT_SIZE);
+                replayJournal();
+            }
             return true;
-        } catch (HibernateException | IllegalStateException throwable) {
+        } catch (HibernateException | IllegalStateException | IOException throwable) {
+            // The schema may not have been updated
+            this.pendingSchemaHashes = null;
             LOGGER.severe("Initialization failed: " + throwable.getMessage());
             throwable.printStackTrace();
+            abortInitialization();
             return false;
+        } catch (RuntimeException exception) {
+            this.pendingSchemaHashes = null;
+            abortInitialization();
+            throw exception;
+        }
+    }
+
+    /**
+     * Releases everything a failed initialization already set up, so {@link #initialized()} returns false and it can be retried
+     */
+    private void abortInitialization() {
+        if (this.writeBehindScheduler != null) {
+            this.writeBehindScheduler.shutdownNow();
+            this.writeBehindScheduler = null;
+        }
+        if (this.dataThreadHandler != null && this.dataThreadHandler.isRunning()) {
+            // Nothing was queued yet, the journal is replayed on the calling thread
+            this.dataThreadHandler.shutdown();
+        }
+        this.dataThreadHandler = null;
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+        if (this.sharedSessionFactory && this.sessionFactory != null) {
+            SessionFactoryRegistry.getInstance().release(this.sessionFactory);
+        } else if (this.sessionFactory != null) {
+            this.sessionFactory.close();
         }
+        this.sessionFactory = null;
+        this.dirtyTracker = null;
+        this.upsertStatement = null;
     }
 
 
+    /**
+     * Gets the maximum size of the connection pool, including overrides set with {@link #setProperty(String, String)}
+     *
+     * @return the maximum amount of pooled connections
+     */
+    protected int maximumPoolSize() {
+        try {
+            return Math.max(1, Integer.parseInt(this.properties.getOrDefault("hibernate.hikari.maximumPoolSize", String.valueOf(MAXIMUM_POOL_SIZE))));
+        } catch (NumberFormatException exception) {
+            return MAXIMUM_POOL_SIZE;
+        }
+    }
+
     @Override
     public void close() {
-        if (this.sessionFactory != null) {
-            this.sessionFactory.close();
+        if (this.invalidationSubscription != null) {
+            this.invalidationSubscription.close();
+            this.invalidationSubscription = null;
+        }
+        if (this.writeBehindScheduler != null) {
+            this.writeBehindScheduler.shutdownNow();
+            this.writeBehindScheduler = null;
+            // Pending saves are queued again so they are written when the thread handler is drained
+            this.pendingSaves.keySet().forEach(id -> this.dataThreadHandler.queue(id, new SaveTask(id, null)));
         }
         if (this.dataThreadHandler != null) {
-            this.dataThreadHandler.shutdown();
+            if (this.shutdownTimeoutMillis > 0) {
+                this.unflushedIds = Collections.unmodifiableSet(this.dataThreadHandler.shutdown(maximumPoolSize(), this.shutdownTimeoutMillis, TimeUnit.MILLISECONDS));
+            } else {
+                this.dataThreadHandler.shutdown();
+            }
+            if (!this.unflushedIds.isEmpty()) {
+                LOGGER.severe("Could not write " + this.unflushedIds.size() + " " + this.type.getSimpleName() + " entities before the shutdown deadline"
+                        + (this.journal != null ? ", they are kept in the journal: " : ": ") + this.unflushedIds);
+            }
+            if (!awaitTasks()) {
+                // Closing the session factory would close the connections of the running tasks, the journal may still be committed to
+                LOGGER.severe("Queued " + this.type.getSimpleName() + " tasks are still running after the shutdown, the session factory is not closed");
+                this.sessionFactory = null;
+                return;
+            }
+        }
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+        if (this.sharedSessionFactory && this.sessionFactory != null) {
+            SessionFactoryRegistry.getInstance().release(this.sessionFactory);
+            this.sessionFactory = null;
+        } else if (this.sessionFactory != null) {
+            this.sessionFactory.close();
+        }
+    }
+
+    /**
+     * Waits for tasks that were still running when the thread handler was shut down, they can't be interrupted
+     *
+     * @return true if no task is running anymore
+     */
+    private boolean awaitTasks() {
+        try {
+            return this.dataThreadHandler.awaitTermination(TASK_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A queued task whose queue and execution time are recorded in the metrics.
+     * If it is dropped on shutdown or while the database is unavailable, its future is completed exceptionally.
+     */
+    protected class TimedTask implements DataThreadHandler.DroppableTask {
+
+        private final DataMetrics.Operation operation;
+        private final CompletableFuture<?> future;
+        private final Runnable task;
+        private final long queued = System.nanoTime();
+
+        protected TimedTask(@NotNull DataMetrics.Operation operation, @NotNull CompletableFuture<?> future, @NotNull Runnable task) {
+            this.operation = operation;
+            this.future = future;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!available()) {
+                drop(new IllegalStateException("Database unavailable!"));
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                this.task.run();
+            } finally {
+                metrics.record(this.operation, start - this.queued, System.nanoTime() - start, this.future.isDone() && !this.future.isCompletedExceptionally());
+            }
+        }
+
+        @Override
+        public Collection<String> drop(@NotNull Throwable cause) {
+            this.future.completeExceptionally(cause);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * A queued save of a single entity that can be written in one transaction together with other queued saves
+     */
+    protected class SaveTask implements DataThreadHandler.BatchTask, DataThreadHandler.CoalescingTask, DataThreadHandler.DroppableTask {
+
+        private final String id;
+        private final PendingSave<T> save;
+        private final long queued = System.nanoTime();
+
+        /**
+         * Creates a new save task
+         *
+         * @param id   the id of the entity
+         * @param save the entity to save, null to save the latest pending write-behind state of the entity
+         */
+        protected SaveTask(@NotNull String id, @Nullable PendingSave<T> save) {
+            this.id = id;
+            this.save = save;
+        }
+
+        private PendingSave<T> take() {
+            return this.save != null ? this.save : pendingSaves.remove(this.id);
+        }
+
+        private HibernateDataHandler<T> handler() {
+            return HibernateDataHandler.this;
+        }
+
+        @Override
+        public void run() {
+            runBatch(Collections.singletonList(this));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Runnable coalesce(@NotNull Runnable queued) {
+            if (!(queued instanceof HibernateDataHandler.SaveTask) || ((HibernateDataHandler<?>.SaveTask) queued).handler() != handler()) {
+                return null;
+            }
+            SaveTask other = (SaveTask) queued;
+            if (!other.id.equals(this.id)) {
+                return null;
+            }
+            // Write-behind saves always write the latest pending state, so the queued one is enough
+            if (other.save == null || this.save == null) {
+                return other.save == null && this.save == null ? other : null;
+            }
+
+            PendingSave<T> merged = new PendingSave<>(this.save.entity);
+            merged.future.whenComplete((entity, throwable) -> {
+                for (CompletableFuture<T> future : Arrays.asList(other.save.future, this.save.future)) {
+                    if (throwable != null) {
+                        future.completeExceptionally(throwable);
+                    } else {
+                        future.complete(entity);
+                    }
+                }
+            });
+            return new SaveTask(this.id, merged);
+        }
+
+        @Override
+        public Collection<String> drop(@NotNull Throwable cause) {
+            PendingSave<T> save = take();
+            if (save == null) {
+                return Collections.emptyList();
+            }
+            save.future.completeExceptionally(cause);
+            return Collections.singletonList(this.id);
+        }
+
+        @Override
+        public boolean canBatchWith(@NotNull DataThreadHandler.BatchTask other) {
+            return other instanceof HibernateDataHandler.SaveTask && ((HibernateDataHandler<?>.SaveTask) other).handler() == handler();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void runBatch(@NotNull List<DataThreadHandler.BatchTask> batch) {
+            if (!available()) {
+                IllegalStateException cause = new IllegalStateException("Database unavailable!");
+                batch.forEach(task -> ((SaveTask) task).drop(cause));
+                return;
+            }
+            long start = System.nanoTime();
+            List<PendingSave<T>> saves = new ArrayList<>(batch.size());
+            List<Long> waits = new ArrayList<>(batch.size());
+            for (DataThreadHandler.BatchTask task : batch) {
+                PendingSave<T> save = ((SaveTask) task).take();
+                if (save != null) {
+                    saves.add(save);
+                    waits.add(start - ((SaveTask) task).queued);
+                }
+            }
+            if (saves.isEmpty()) {
+                return;
+            }
+
+            write(saves);
+            long execution = System.nanoTime() - start;
+            for (int i = 0; i < saves.size(); i++) {
+                metrics.record(DataMetrics.Operation.SAVE, waits.get(i), execution, !saves.get(i).future.isCompletedExceptionally());
+            }
+        }
+    }
+
+    /**
+     * An operation issued during asynchronous initialization
+     *
+     * @param <V> the type of the result
+     */
+    protected static class DeferredOperation<V> {
+
+        protected final CompletableFuture<V> future = new CompletableFuture<>();
+        protected final Supplier<CompletableFuture<V>> operation;
+
+        protected DeferredOperation(Supplier<CompletableFuture<V>> operation) {
+            this.operation = operation;
+        }
+
+        protected void replay() {
+            try {
+                this.operation.get().whenComplete((value, throwable) -> {
+                    if (throwable != null) {
+                        this.future.completeExceptionally(throwable);
+                    } else {
+                        this.future.complete(value);
+                    }
+                });
+            } catch (RuntimeException exception) {
+                this.future.completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * The latest unwritten state of an entity and the future shared by all saves collapsed into it
+     *
+     * @param <T> the type of entity
+     */
+    protected static class PendingSave<T> {
+
+        protected final CompletableFuture<T> future = new CompletableFuture<>();
+        protected volatile T entity;
+
+        protected PendingSave(T entity) {
+            this.entity = entity;
         }
     }
 }
@@ -0,0 +1,42 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+/**
+ * A message bus between servers sharing a database, used to invalidate cached entities on other servers once they were saved.
+ * Implementations may use any transport (e.g. Redis pub/sub or plugin messages).
+ * Invalidations are only delivered to the subscribers of other servers, never back to the publishing one.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Publishes that an entity was changed
+     *
+     * @param channel the channel, usually the class name of the entity type
+     * @param id      the id of the entity
+     */
+    void publish(@NotNull String channel, @NotNull String id);
+
+    /**
+     * Subscribes to the invalidations of a channel published by other servers
+     *
+     * @param channel  the channel, usually the class name of the entity type
+     * @param listener the listener receiving the ids of changed entities
+     * @return the subscription, closing it stops receiving invalidations
+     */
+    Subscription subscribe(@NotNull String channel, @NotNull Consumer<String> listener);
+
+    /**
+     * A subscription to a channel
+     */
+    interface Subscription extends AutoCloseable {
+
+        /**
+         * Stops receiving invalidations
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,484 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A data handler that appends serialized entities to memory-mapped log segments in a local directory.
+ * The location of the latest version of every entity is kept in memory and rebuilt by scanning the segments on startup.
+ * Segments mostly containing outdated versions are compacted in the background.
+ * Data written to the mapped segments survives a crash of the server process, {@link #close()} also flushes it to disk.
+ *
+ * @param <T> the type of entity
+ */
+public class LogDataHandler<T> implements DataHandler<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(LogDataHandler.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Record length, checksum and id length
+    private static final int HEADER_SIZE = 4 + 4 + 2;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+
+    protected final File directory;
+    protected final Function<T, String> idFunction;
+    protected final Function<String, T> defaultEntityProvider;
+    protected final EntitySerializer<T> serializer;
+    protected final int segmentSize;
+
+    protected final Map<String, Location> index = new ConcurrentHashMap<>();
+    protected final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Reads hold the read lock, compaction holds the write lock while segments are removed
+    protected final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    protected final Object appendLock = new Object();
+    protected Segment activeSegment;
+    protected DataThreadHandler dataThreadHandler;
+    protected ScheduledExecutorService compactionScheduler;
+    protected volatile boolean initialized;
+
+    /**
+     * Creates a new LogDataHandler
+     *
+     * @param directory             the directory containing the segments
+     * @param idFunction            a function returning the id of an entity
+     * @param defaultEntityProvider a provider for the default entity
+     * @param serializer            the serializer for entities
+     * @param segmentSize           the size of a segment in bytes, also the maximum size of a single entity
+     */
+    public LogDataHandler(@NotNull File directory, @NotNull Function<T, String> idFunction, @NotNull Function<String, T> defaultEntityProvider, @NotNull EntitySerializer<T> serializer, int segmentSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size must be larger than " + HEADER_SIZE + " bytes");
+        }
+        this.directory = directory;
+        this.idFunction = idFunction;
+        this.defaultEntityProvider = defaultEntityProvider;
+        this.serializer = serializer;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Creates a new LogDataHandler using segments of 64 MiB
+     *
+     * @param directory             the directory containing the segments
+     * @param idFunction            a function returning the id of an entity
+     * @param defaultEntityProvider a provider for the default entity
+     * @param serializer            the serializer for entities
+     */
+    public LogDataHandler(@NotNull File directory, @NotNull Function<T, String> idFunction, @NotNull Function<String, T> defaultEntityProvider, @NotNull EntitySerializer<T> serializer) {
+        this(directory, idFunction, defaultEntityProvider, serializer, 64 * 1024 * 1024);
+    }
+
+    @Override
+    public CompletableFuture<T> save(@NotNull T entity) {
+        checkInitialized();
+        String id = this.idFunction.apply(entity);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(id, () -> {
+            try {
+                append(id, this.serializer.serialize(entity));
+                future.complete(entity);
+            } catch (IOException | RuntimeException exception) {
+                future.completeExceptionally(exception);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid) {
+        return load(uuid, true);
+    }
+
+    @Override
+    public CompletableFuture<T> load(@NotNull String uuid, boolean createIfNotExists) {
+        checkInitialized();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(uuid, DataThreadHandler.Priority.HIGH, () -> {
+            try {
+                T entity = read(uuid);
+                if (entity == null && createIfNotExists) {
+                    entity = this.defaultEntityProvider.apply(uuid);
+                    if (entity != null) {
+                        append(uuid, this.serializer.serialize(entity));
+                    }
+                }
+                future.complete(entity);
+            } catch (IOException | RuntimeException exception) {
+                future.completeExceptionally(exception);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<List<T>> loadAll() {
+        checkInitialized();
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(DataThreadHandler.Priority.LOW, () -> {
+            try {
+                List<T> entities = new ArrayList<>(this.index.size());
+                for (String id : this.index.keySet()) {
+                    T entity = read(id);
+                    if (entity != null) {
+                        entities.add(entity);
+                    }
+                }
+                future.complete(entities);
+            } catch (IOException | RuntimeException exception) {
+                future.completeExceptionally(exception);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Long> streamAll(int chunkSize, @NotNull Consumer<List<T>> consumer) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        checkInitialized();
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        this.dataThreadHandler.queue(DataThreadHandler.Priority.LOW, () -> {
+            try {
+                long count = 0;
+                List<T> chunk = new ArrayList<>(chunkSize);
+                for (String id : this.index.keySet()) {
+                    T entity = read(id);
+                    if (entity == null) {
+                        continue;
+                    }
+                    chunk.add(entity);
+                    count++;
+                    if (chunk.size() >= chunkSize) {
+                        consumer.accept(chunk);
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    consumer.accept(chunk);
+                }
+                future.complete(count);
+            } catch (IOException | RuntimeException exception) {
+                future.completeExceptionally(exception);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Reads the latest version of an entity from the segments
+     *
+     * @param id the id of the entity
+     * @return the entity or null if it doesn't exist
+     * @throws IOException if the entity can't be deserialized
+     */
+    protected T read(@NotNull String id) throws IOException {
+        byte[] payload;
+        this.segmentLock.readLock().lock();
+        try {
+            Location location = this.index.get(id);
+            if (location == null) {
+                return null;
+            }
+            payload = readPayload(location);
+        } finally {
+            this.segmentLock.readLock().unlock();
+        }
+        return this.serializer.deserialize(payload);
+    }
+
+    private byte[] readPayload(Location location) {
+        ByteBuffer buffer = this.segments.get(location.segment).buffer.duplicate();
+        buffer.position(location.offset + 8);
+        short idLength = buffer.getShort();
+        buffer.position(buffer.position() + idLength);
+        byte[] payload = new byte[location.length - HEADER_SIZE - idLength];
+        buffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * Appends a record to the active segment and points the index to it
+     *
+     * @param id      the id of the entity
+     * @param payload the serialized entity
+     */
+    protected void append(@NotNull String id, byte[] payload) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + idBytes.length + payload.length;
+        if (idBytes.length > Short.MAX_VALUE || length > this.segmentSize) {
+            throw new IllegalArgumentException("Entity " + id + " is too large for a segment (" + length + " bytes)");
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(idBytes);
+        checksum.update(payload);
+
+        synchronized (this.appendLock) {
+            if (this.activeSegment.position + length > this.segmentSize) {
+                roll();
+            }
+
+            Segment segment = this.activeSegment;
+            int offset = segment.position;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + 4);
+            buffer.putInt((int) checksum.getValue());
+            buffer.putShort((short) idBytes.length);
+            buffer.put(idBytes);
+            buffer.put(payload);
+            // The length is written last, a record without length marks the end of the segment
+            buffer.putInt(offset, length);
+            segment.position += length;
+            segment.liveBytes.addAndGet(length);
+
+            Location previous = this.index.put(id, new Location(segment.id, offset, length));
+            if (previous != null) {
+                Segment previousSegment = this.segments.get(previous.segment);
+                if (previousSegment != null) {
+                    previousSegment.liveBytes.addAndGet(-previous.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new one
+     */
+    private void roll() {
+        this.activeSegment.buffer.force();
+        int id = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+        try {
+            this.activeSegment = openSegment(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.segments.put(id, this.activeSegment);
+    }
+
+    /**
+     * Rewrites the live records of sealed segments that mostly contain outdated versions and deletes those segments
+     */
+    protected void compact() {
+        for (Segment segment : new ArrayList<>(this.segments.values())) {
+            this.segmentLock.writeLock().lock();
+            try {
+                synchronized (this.appendLock) {
+                    // Appends roll the active segment and move its position, so both are only checked under the append lock
+                    if (segment == this.activeSegment || segment.liveBytes.get() >= segment.position * COMPACTION_THRESHOLD) {
+                        continue;
+                    }
+
+                    for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+                        if (entry.getValue().segment == segment.id) {
+                            append(entry.getKey(), readPayload(entry.getValue()));
+                        }
+                    }
+                    // The copied records have to be on disk before the sealed segment is deleted
+                    this.activeSegment.buffer.force();
+                    this.segments.remove(segment.id);
+                }
+            } finally {
+                this.segmentLock.writeLock().unlock();
+            }
+
+            // The mapping is released by the garbage collector, the file can already be deleted on most systems
+            if (!segment.file.delete()) {
+                LOGGER.warning("Could not delete compacted segment " + segment.file.getName());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index by scanning all segments, a record with an invalid checksum ends a segment
+     *
+     * @throws IOException if a segment can't be read
+     */
+    protected void recover() throws IOException {
+        // The handler can be initialized again after it was closed
+        this.index.clear();
+        this.segments.clear();
+
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<Integer> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        for (int id : ids) {
+            Segment segment = openSegment(id);
+            this.segments.put(id, segment);
+            ByteBuffer buffer = segment.buffer.duplicate();
+
+            int offset = 0;
+            while (offset + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length < HEADER_SIZE || offset + length > buffer.capacity()) {
+                    break;
+                }
+                buffer.position(offset + 4);
+                int expectedChecksum = buffer.getInt();
+                short idLength = buffer.getShort();
+                if (idLength < 0 || HEADER_SIZE + idLength > length) {
+                    break;
+                }
+                byte[] idBytes = new byte[idLength];
+                buffer.get(idBytes);
+                byte[] payload = new byte[length - HEADER_SIZE - idLength];
+                buffer.get(payload);
+
+                CRC32 checksum = new CRC32();
+                checksum.update(idBytes);
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    LOGGER.warning("Corrupt record in segment " + segment.file.getName() + " at offset " + offset + ", ignoring the rest of the segment");
+                    break;
+                }
+
+                segment.liveBytes.addAndGet(length);
+                Location previous = this.index.put(new String(idBytes, StandardCharsets.UTF_8), new Location(id, offset, length));
+                if (previous != null) {
+                    this.segments.get(previous.segment).liveBytes.addAndGet(-previous.length);
+                }
+                offset += length;
+            }
+            segment.position = offset;
+        }
+
+        if (this.segments.isEmpty()) {
+            this.segments.put(0, openSegment(0));
+        }
+        this.activeSegment = this.segments.lastEntry().getValue();
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(this.directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // Mapping the whole segment extends new files to the segment size
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, randomAccessFile.length()));
+            return new Segment(id, file, buffer);
+        }
+    }
+
+    /**
+     * Gets the amount of stored entities
+     *
+     * @return the amount of entities
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    @Override
+    public boolean initialize() {
+        try {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Could not create directory " + this.directory);
+            }
+            recover();
+
+            this.dataThreadHandler = new DataThreadHandler();
+            this.dataThreadHandler.init();
+
+            this.compactionScheduler = Executors.newSingleThreadScheduledExecutor();
+            this.compactionScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (RuntimeException exception) {
+                    LOGGER.log(Level.SEVERE, "Compaction failed: " + exception.getMessage(), exception);
+                }
+            }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+            this.initialized = true;
+            return true;
+        } catch (IOException | RuntimeException throwable) {
+            LOGGER.severe("Initialization failed: " + throwable.getMessage());
+            throwable.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean initialized() {
+        return this.initialized;
+    }
+
+    @Override
+    public void close() {
+        if (this.compactionScheduler != null) {
+            this.compactionScheduler.shutdownNow();
+        }
+        if (this.dataThreadHandler != null) {
+            this.dataThreadHandler.shutdown();
+        }
+        synchronized (this.appendLock) {
+            this.segments.values().forEach(segment -> segment.buffer.force());
+        }
+        this.initialized = false;
+    }
+
+    private void checkInitialized() {
+        if (!initialized()) {
+            throw new IllegalStateException("LogDataHandler not initialized!");
+        }
+    }
+
+    /**
+     * The position of a record in the segments
+     */
+    protected static final class Location {
+
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        private Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file
+     */
+    protected static final class Segment {
+
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // The amount of bytes of records that are still the latest version of their entity
+        private final AtomicLong liveBytes = new AtomicLong();
+        private int position;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
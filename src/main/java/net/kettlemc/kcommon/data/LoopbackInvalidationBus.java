@@ -0,0 +1,68 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An invalidation bus connecting nodes within the same process, mainly for tests.
+ * Every node behaves like a separate server, invalidations published by a node are delivered
+ * synchronously to the subscribers of all other nodes connected to it.
+ */
+public class LoopbackInvalidationBus implements InvalidationBus {
+
+    private static final Logger LOGGER = Logger.getLogger(LoopbackInvalidationBus.class.getName());
+
+    private final List<LoopbackInvalidationBus> nodes;
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new bus with a single node
+     */
+    public LoopbackInvalidationBus() {
+        this(new CopyOnWriteArrayList<>());
+    }
+
+    private LoopbackInvalidationBus(List<LoopbackInvalidationBus> nodes) {
+        this.nodes = nodes;
+        this.nodes.add(this);
+    }
+
+    /**
+     * Creates a new node connected to this bus
+     *
+     * @return the node
+     */
+    public LoopbackInvalidationBus connect() {
+        return new LoopbackInvalidationBus(this.nodes);
+    }
+
+    @Override
+    public void publish(@NotNull String channel, @NotNull String id) {
+        for (LoopbackInvalidationBus node : this.nodes) {
+            if (node == this) {
+                continue;
+            }
+            for (Consumer<String> listener : node.listeners.getOrDefault(channel, Collections.emptyList())) {
+                try {
+                    listener.accept(id);
+                } catch (RuntimeException exception) {
+                    LOGGER.log(Level.WARNING, "Invalidation listener failed: " + exception.getMessage(), exception);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Subscription subscribe(@NotNull String channel, @NotNull Consumer<String> listener) {
+        this.listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> this.listeners.get(channel).remove(listener);
+    }
+}
@@ -0,0 +1,368 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A local write-ahead journal for saves that were not written to the database yet.
+ * Saves are appended to segment files before they are queued, so they survive a crash of the server process,
+ * the segments are synced to disk in a fixed interval so they also survive a crash of the machine.
+ * Once a save was written, a commit marker is appended, so only uncommitted saves are replayed on startup.
+ * Segments are deleted in order once all of their saves were committed.
+ */
+public class SaveJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(SaveJournal.class.getName());
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Record length, checksum, type, sequence and id length
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8 + 2;
+    private static final byte SAVE = 0;
+    private static final byte COMMIT = 1;
+
+    private final File directory;
+    private final long segmentSize;
+    // Segments that were not deleted yet in the order they were created, the last one is the active segment
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<String, Entry> recovered = new HashMap<>();
+    private ScheduledExecutorService syncScheduler;
+    private Segment active;
+    private int nextSegment;
+    private long nextSequence;
+
+    /**
+     * Creates a new journal, {@link #recover()} has to be called before appending saves
+     *
+     * @param directory          the directory containing the segments
+     * @param syncIntervalMillis the interval in which appended saves are synced to disk
+     * @param segmentSize        the size in bytes after which a new segment is started
+     */
+    public SaveJournal(@NotNull File directory, long syncIntervalMillis, long segmentSize) {
+        if (syncIntervalMillis < 1 || segmentSize < 1) {
+            throw new IllegalArgumentException("Sync interval and segment size must be at least 1");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kcommon-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncScheduler.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the uncommitted saves left in the journal by a previous run and starts a new segment.
+     * The recovered saves are appended to the new segment and the old segments are deleted,
+     * every recovered save has to be committed with {@link #commitRecovered(String)} once it was written.
+     *
+     * @return the latest uncommitted save of every entity mapped by id, in the order they were saved
+     * @throws IOException if the journal can't be read or the new segment can't be created
+     */
+    public synchronized Map<String, byte[]> recover() throws IOException {
+        if (this.active != null) {
+            throw new IllegalStateException("SaveJournal already recovered!");
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create directory " + this.directory);
+        }
+
+        File[] found = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        SortedMap<Integer, File> files = new TreeMap<>();
+        if (found != null) {
+            for (File file : found) {
+                String name = file.getName();
+                files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+
+        Map<String, Record> latest = new LinkedHashMap<>();
+        Set<Long> committed = new HashSet<>();
+        for (Map.Entry<Integer, File> segment : files.entrySet()) {
+            read(segment.getValue(), latest, committed);
+            this.nextSegment = segment.getKey() + 1;
+        }
+
+        Map<String, byte[]> saves = new LinkedHashMap<>();
+        for (Map.Entry<String, Record> record : latest.entrySet()) {
+            // A committed save was written after all earlier saves of the entity
+            if (!committed.contains(record.getValue().sequence)) {
+                saves.put(record.getKey(), record.getValue().payload);
+            }
+        }
+
+        this.active = openSegment();
+        for (Map.Entry<String, byte[]> save : saves.entrySet()) {
+            this.recovered.put(save.getKey(), append(save.getKey(), save.getValue()));
+        }
+        this.active.channel.force(false);
+        for (File file : files.values()) {
+            if (!file.delete()) {
+                LOGGER.warning("Could not delete journal segment " + file.getName());
+            }
+        }
+        return saves;
+    }
+
+    private void read(File file, Map<String, Record> latest, Set<Long> committed) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (true) {
+                header.clear();
+                if (channel.read(header) < HEADER_SIZE) {
+                    return;
+                }
+                header.flip();
+                int length = header.getInt();
+                int expectedChecksum = header.getInt();
+                byte type = header.get();
+                long sequence = header.getLong();
+                short idLength = header.getShort();
+                if (length < HEADER_SIZE || idLength < 0 || HEADER_SIZE + idLength > length) {
+                    return;
+                }
+
+                ByteBuffer body = ByteBuffer.allocate(length - HEADER_SIZE);
+                if (channel.read(body) < body.capacity()) {
+                    // Torn write at the end of the segment
+                    return;
+                }
+                byte[] idBytes = new byte[idLength];
+                byte[] payload = new byte[body.capacity() - idLength];
+                body.flip();
+                body.get(idBytes);
+                body.get(payload);
+
+                if (checksum(type, sequence, idBytes, payload) != expectedChecksum) {
+                    LOGGER.warning("Corrupt record in journal segment " + file.getName() + ", ignoring the rest of the segment");
+                    return;
+                }
+
+                this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+                if (type == COMMIT) {
+                    committed.add(sequence);
+                } else {
+                    String id = new String(idBytes, StandardCharsets.UTF_8);
+                    // Keep the order of the latest save per entity
+                    latest.remove(id);
+                    latest.put(id, new Record(sequence, payload));
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits a save returned by {@link #recover()} once it was written to the database
+     *
+     * @param id the id of the entity
+     */
+    public synchronized void commitRecovered(@NotNull String id) {
+        Entry entry = this.recovered.remove(id);
+        if (entry != null) {
+            commit(entry);
+        }
+    }
+
+    /**
+     * Appends a save to the journal
+     *
+     * @param id      the id of the entity
+     * @param payload the serialized entity
+     * @return the entry, which has to be committed once the save was written to the database
+     * @throws IOException if the save can't be appended
+     */
+    public synchronized Entry append(@NotNull String id, byte[] payload) throws IOException {
+        if (this.active == null) {
+            throw new IllegalStateException("SaveJournal not recovered or already closed!");
+        }
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Id is too long: " + id);
+        }
+
+        long sequence = this.nextSequence++;
+        Segment segment = write(SAVE, sequence, idBytes, payload);
+        segment.pending++;
+        return new Entry(segment, sequence);
+    }
+
+    /**
+     * Marks a save as written to the database by appending a commit marker.
+     * Segments are deleted once all of their saves and the saves of all earlier segments were committed.
+     *
+     * @param entry the entry returned by {@link #append(String, byte[])}
+     */
+    public synchronized void commit(@NotNull Entry entry) {
+        if (entry.committed) {
+            return;
+        }
+        entry.committed = true;
+        entry.segment.pending--;
+        if (this.active != null) {
+            try {
+                write(COMMIT, entry.sequence, new byte[0], new byte[0]);
+            } catch (IOException exception) {
+                LOGGER.warning("Could not append a commit marker to the journal: " + exception.getMessage());
+            }
+        }
+        deleteCommitted();
+    }
+
+    private Segment write(byte type, long sequence, byte[] idBytes, byte[] payload) throws IOException {
+        if (this.active.size >= this.segmentSize) {
+            this.active.sealed = true;
+            this.active.channel.force(false);
+            this.active = openSegment();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + idBytes.length + payload.length);
+        record.putInt(record.capacity());
+        record.putInt(checksum(type, sequence, idBytes, payload));
+        record.put(type);
+        record.putLong(sequence);
+        record.putShort((short) idBytes.length);
+        record.put(idBytes);
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            this.active.channel.write(record);
+        }
+        this.active.size += record.capacity();
+        return this.active;
+    }
+
+    private static int checksum(byte type, long sequence, byte[] idBytes, byte[] payload) {
+        CRC32 checksum = new CRC32();
+        checksum.update(type);
+        checksum.update(ByteBuffer.allocate(8).putLong(0, sequence).array());
+        checksum.update(idBytes);
+        checksum.update(payload);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Syncs the appended saves to disk
+     */
+    public void sync() {
+        Segment segment;
+        synchronized (this) {
+            segment = this.active;
+        }
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.channel.force(false);
+        } catch (IOException exception) {
+            // The segment was closed because all of its saves were committed
+        }
+    }
+
+    /**
+     * Deletes the sealed segments at the start of the journal whose saves were all committed.
+     * Segments are only deleted in order, as the commit markers of a segment may belong to saves in earlier segments.
+     */
+    private void deleteCommitted() {
+        Segment segment;
+        while ((segment = this.segments.peekFirst()) != null && segment.sealed && segment.pending <= 0) {
+            this.segments.pollFirst();
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+            if (!segment.file.delete()) {
+                LOGGER.warning("Could not delete journal segment " + segment.file.getName());
+            }
+        }
+    }
+
+    private Segment openSegment() throws IOException {
+        File file = new File(this.directory, String.format("%s%08d%s", SEGMENT_PREFIX, this.nextSegment++, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        this.segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Syncs and closes the journal, all segments are deleted if all of their saves were committed
+     */
+    @Override
+    public synchronized void close() {
+        if (this.syncScheduler != null) {
+            this.syncScheduler.shutdownNow();
+            this.syncScheduler = null;
+        }
+        if (this.active == null) {
+            return;
+        }
+        try {
+            this.active.channel.force(false);
+        } catch (IOException exception) {
+            LOGGER.warning("Could not sync the journal: " + exception.getMessage());
+        }
+        this.active.sealed = true;
+        deleteCommitted();
+        for (Segment segment : this.segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        this.segments.clear();
+        this.recovered.clear();
+        this.active = null;
+    }
+
+    /**
+     * A save appended to the journal
+     */
+    public static final class Entry {
+
+        private final Segment segment;
+        private final long sequence;
+        private boolean committed;
+
+        private Entry(Segment segment, long sequence) {
+            this.segment = segment;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Record {
+
+        private final long sequence;
+        private final byte[] payload;
+
+        private Record(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Segment {
+
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private int pending;
+        private boolean sealed;
+
+        private Segment(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the database schema in a version table, so the schema doesn't have to be inspected on every startup.
+ * Stores a hash of the mapping of every entity type, Hibernate only has to update the schema if a hash changed.
+ * Other schema changes are applied explicitly as versioned {@link SchemaMigration}s.
+ */
+public class SchemaManager {
+
+    /**
+     * The name of the version table
+     */
+    public static final String TABLE = "kcommon_schema";
+
+    private static final Logger LOGGER = Logger.getLogger(SchemaManager.class.getName());
+    private static final String MIGRATIONS = "kcommon:migrations";
+
+    private final ConnectionFactory connectionFactory;
+
+    /**
+     * Creates a new schema manager, the JDBC driver has to be loaded already
+     *
+     * @param url      the JDBC url of the database
+     * @param user     the database user
+     * @param password the password of the user
+     */
+    public SchemaManager(@NotNull String url, @Nullable String user, @Nullable String password) {
+        this(() -> DriverManager.getConnection(url, user, password));
+    }
+
+    /**
+     * Creates a new schema manager
+     *
+     * @param connectionFactory opens a new connection to the database for every operation
+     */
+    public SchemaManager(@NotNull ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * Hashes the mapping of entity types, i.e. their persistent fields, getters and annotations including superclasses
+     *
+     * @param types the entity types
+     * @return the hashes mapped by the class name of the types
+     */
+    public static Map<String, String> hashes(@NotNull Collection<Class<?>> types) {
+        Map<String, String> hashes = new TreeMap<>();
+        for (Class<?> type : types) {
+            hashes.put(type.getName(), hash(type));
+        }
+        return hashes;
+    }
+
+    private static String hash(Class<?> type) {
+        StringBuilder mapping = new StringBuilder();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            mapping.append(current.getName()).append(annotations(current.getDeclaredAnnotations())).append('\n');
+
+            Field[] fields = current.getDeclaredFields();
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+            for (Field field : fields) {
+                mapping.append(field.getName()).append(':').append(field.getGenericType().getTypeName())
+                        .append(':').append(field.getModifiers()).append(annotations(field.getDeclaredAnnotations())).append('\n');
+            }
+
+            // Getters are only part of the mapping if they are annotated (property access)
+            Method[] methods = current.getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::toGenericString));
+            for (Method method : methods) {
+                if (method.getDeclaredAnnotations().length > 0) {
+                    mapping.append(method.toGenericString()).append(annotations(method.getDeclaredAnnotations())).append('\n');
+                }
+            }
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(mapping.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String annotations(Annotation[] annotations) {
+        List<String> names = new ArrayList<>(annotations.length);
+        for (Annotation annotation : annotations) {
+            names.add(annotation.toString());
+        }
+        Collections.sort(names);
+        return names.toString();
+    }
+
+    /**
+     * Checks if the recorded hashes match the given hashes
+     *
+     * @param hashes the current hashes mapped by the class name of the types
+     * @return true if all hashes match, so the schema doesn't have to be updated
+     * @throws SQLException if the version table can't be read
+     */
+    public boolean matches(@NotNull Map<String, String> hashes) throws SQLException {
+        try (Connection connection = connect()) {
+            createTable(connection);
+            try (PreparedStatement statement = connection.prepareStatement("SELECT hash FROM " + TABLE + " WHERE name = ?")) {
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    statement.setString(1, entry.getKey());
+                    try (ResultSet result = statement.executeQuery()) {
+                        if (!result.next() || !entry.getValue().equals(result.getString(1))) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the hashes after the schema was updated to match them
+     *
+     * @param hashes the hashes mapped by the class name of the types
+     * @throws SQLException if the version table can't be written
+     */
+    public void record(@NotNull Map<String, String> hashes) throws SQLException {
+        try (Connection connection = connect()) {
+            createTable(connection);
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(upsert())) {
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    statement.setString(1, entry.getKey());
+                    statement.setString(2, entry.getValue());
+                    statement.setInt(3, 0);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Gets the version of the last executed migration
+     *
+     * @return the version, 0 if no migration was executed yet
+     * @throws SQLException if the version table can't be read
+     */
+    public int getVersion() throws SQLException {
+        try (Connection connection = connect()) {
+            createTable(connection);
+            return version(connection);
+        }
+    }
+
+    /**
+     * Executes all migrations with a higher version than the recorded version in ascending order.
+     * Every migration runs in its own transaction together with the update of the recorded version,
+     * a failing migration stops the migration and is thrown.
+     *
+     * @param migrations the migrations
+     * @return the amount of executed migrations
+     * @throws SQLException if a migration fails
+     */
+    public int migrate(@NotNull Collection<SchemaMigration> migrations) throws SQLException {
+        List<SchemaMigration> sorted = new ArrayList<>(migrations);
+        sorted.sort(Comparator.comparingInt(SchemaMigration::getVersion));
+
+        try (Connection connection = connect()) {
+            createTable(connection);
+            int version = version(connection);
+            int executed = 0;
+
+            connection.setAutoCommit(false);
+            for (SchemaMigration migration : sorted) {
+                if (migration.getVersion() <= version) {
+                    continue;
+                }
+                try (PreparedStatement statement = connection.prepareStatement(upsert())) {
+                    migration.migrate(connection);
+                    statement.setString(1, MIGRATIONS);
+                    statement.setString(2, "");
+                    statement.setInt(3, migration.getVersion());
+                    statement.executeUpdate();
+                    connection.commit();
+                } catch (SQLException exception) {
+                    connection.rollback();
+                    throw exception;
+                }
+                version = migration.getVersion();
+                executed++;
+                LOGGER.info("Migrated schema to version " + version);
+            }
+            return executed;
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return this.connectionFactory.connect();
+    }
+
+    private void createTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                    + "hash VARCHAR(64) NOT NULL, version INT NOT NULL DEFAULT 0, updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+
+    private int version(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT version FROM " + TABLE + " WHERE name = ?")) {
+            statement.setString(1, MIGRATIONS);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getInt(1) : 0;
+            }
+        }
+    }
+
+    private static String upsert() {
+        return "INSERT INTO " + TABLE + " (name, hash, version, updated_at) VALUES (?, ?, ?, CURRENT_TIMESTAMP) "
+                + "ON DUPLICATE KEY UPDATE hash = VALUES(hash), version = VALUES(version), updated_at = VALUES(updated_at)";
+    }
+
+    /**
+     * Opens connections to the database, the schema manager closes them after use
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+
+        /**
+         * Opens a new connection
+         *
+         * @return the connection
+         * @throws SQLException if the connection can't be opened
+         */
+        Connection connect() throws SQLException;
+    }
+}
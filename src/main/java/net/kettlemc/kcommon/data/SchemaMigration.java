@@ -0,0 +1,54 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A versioned change of the database schema, executed by {@link SchemaManager#migrate(java.util.Collection)}
+ */
+public interface SchemaMigration {
+
+    /**
+     * Gets the version of the schema after this migration, migrations are executed in ascending order
+     *
+     * @return the version
+     */
+    int getVersion();
+
+    /**
+     * Executes the migration
+     *
+     * @param connection the connection, in a transaction that is committed after the migration
+     * @throws SQLException if the migration fails
+     */
+    void migrate(@NotNull Connection connection) throws SQLException;
+
+    /**
+     * Creates a migration executing SQL statements as a single batch
+     *
+     * @param version    the version of the schema after the migration
+     * @param statements the SQL statements
+     * @return the migration
+     */
+    static SchemaMigration of(int version, @NotNull String... statements) {
+        return new SchemaMigration() {
+            @Override
+            public int getVersion() {
+                return version;
+            }
+
+            @Override
+            public void migrate(@NotNull Connection connection) throws SQLException {
+                try (Statement statement = connection.createStatement()) {
+                    for (String sql : statements) {
+                        statement.addBatch(sql);
+                    }
+                    statement.executeBatch();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package net.kettlemc.kcommon.data;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Shares one session factory and connection pool between all data handlers connecting to the same database with the same credentials.
+ * Entity types have to be registered before the first handler of a database is initialized,
+ * since the session factory is built once for all registered types.
+ */
+public final class SessionFactoryRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionFactoryRegistry.class.getName());
+    private static final SessionFactoryRegistry INSTANCE = new SessionFactoryRegistry();
+
+    private final Map<Key, Entry> entries = new HashMap<>();
+
+    private SessionFactoryRegistry() {
+    }
+
+    /**
+     * Gets the registry
+     *
+     * @return the registry
+     */
+    public static SessionFactoryRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers an entity type, so it is mapped by the shared session factory of the database
+     *
+     * @param url      the JDBC url of the database
+     * @param user     the database user
+     * @param password the password of the user
+     * @param type     the type of entity
+     */
+    public synchronized void register(@NotNull String url, @Nullable String user, @Nullable String password, @NotNull Class<?> type) {
+        Entry entry = this.entries.computeIfAbsent(new Key(url, user, password), key -> new Entry());
+        if (entry.sessionFactory != null && !entry.types.contains(type)) {
+            LOGGER.warning(type.getSimpleName() + " was registered after the shared session factory of " + url + " was built");
+        }
+        entry.types.add(type);
+    }
+
+    /**
+     * Gets the shared session factory of a database, building it with all registered types if it doesn't exist yet.
+     * Every acquired session factory has to be released once it is no longer used.
+     *
+     * @param url           the JDBC url of the database
+     * @param user          the database user
+     * @param password      the password of the user
+     * @param type          the type of entity that will be used
+     * @param configuration a function creating the configuration mapping the given types, only used if the factory is built
+     * @return the session factory or null if it was built without the given type
+     */
+    public synchronized @Nullable SessionFactory acquire(@NotNull String url, @Nullable String user, @Nullable String password, @NotNull Class<?> type, @NotNull Function<Collection<Class<?>>, Configuration> configuration) {
+        Key key = new Key(url, user, password);
+        Entry entry = this.entries.computeIfAbsent(key, k -> new Entry());
+        if (entry.sessionFactory == null) {
+            entry.types.add(type);
+            entry.sessionFactory = configuration.apply(Collections.unmodifiableSet(entry.types)).buildSessionFactory();
+        } else if (!entry.types.contains(type)) {
+            return null;
+        }
+        entry.references++;
+        return entry.sessionFactory;
+    }
+
+    /**
+     * Releases an acquired session factory, it is closed once it was released by every handler
+     *
+     * @param sessionFactory the session factory
+     */
+    public synchronized void release(@NotNull SessionFactory sessionFactory) {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.sessionFactory != sessionFactory) {
+                continue;
+            }
+            if (--entry.references <= 0) {
+                entry.sessionFactory.close();
+                iterator.remove();
+            }
+            return;
+        }
+    }
+
+    private static final class Key {
+
+        private final String url;
+        private final String user;
+        private final String password;
+
+        private Key(String url, String user, String password) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return url.equals(key.url) && Objects.equals(user, key.user) && Objects.equals(password, key.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, user, password);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Set<Class<?>> types = new LinkedHashSet<>();
+        private SessionFactory sessionFactory;
+        private int references;
+    }
+}
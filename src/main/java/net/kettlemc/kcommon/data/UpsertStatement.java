@@ -0,0 +1,148 @@
+package net.kettlemc.kcommon.data;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.Assigned;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.Type;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A native {@code INSERT ... ON DUPLICATE KEY UPDATE} statement generated from the mapping of an entity.
+ * Unlike {@link Session#saveOrUpdate(Object)} it doesn't need a select to decide between insert and update,
+ * so every save is a single round trip and multiple saves can be sent as one JDBC batch.
+ * Requires MariaDB, MySQL or a database emulating them (e.g. H2 in MariaDB mode).
+ */
+public class UpsertStatement {
+
+    private final SessionFactoryImplementor sessionFactory;
+    private final SingleTableEntityPersister persister;
+    private final String sql;
+    private final List<Integer> properties = new ArrayList<>();
+
+    private UpsertStatement(@NotNull SessionFactoryImplementor sessionFactory, @NotNull SingleTableEntityPersister persister) {
+        this.sessionFactory = sessionFactory;
+        this.persister = persister;
+
+        List<String> columns = new ArrayList<>();
+        for (String column : persister.getIdentifierColumnNames()) {
+            columns.add(column);
+        }
+        List<String> updates = new ArrayList<>();
+        boolean[] insertable = persister.getPropertyInsertability();
+        boolean[] updatable = persister.getPropertyUpdateability();
+        for (int i = 0; i < insertable.length; i++) {
+            if (!insertable[i]) {
+                continue;
+            }
+            this.properties.add(i);
+            for (String column : persister.getPropertyColumnNames(i)) {
+                columns.add(column);
+                // Columns mapped with updatable = false keep the value they were inserted with
+                if (updatable[i]) {
+                    updates.add(column + " = VALUES(" + column + ")");
+                }
+            }
+        }
+        if (updates.isEmpty()) {
+            // Entities without updatable columns still need an update clause
+            updates.add(columns.get(0) + " = " + columns.get(0));
+        }
+
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        this.sql = "INSERT INTO " + persister.getTableName() + " (" + String.join(", ", columns) + ") VALUES (" + placeholders
+                + ") ON DUPLICATE KEY UPDATE " + String.join(", ", updates);
+    }
+
+    /**
+     * Creates the upsert statement for an entity type
+     *
+     * @param sessionFactory the session factory the type is mapped in
+     * @param type           the type of entity
+     * @return the statement or null if the mapping of the type is not supported,
+     * i.e. its id is generated, it is versioned, part of an inheritance hierarchy, spans multiple tables or contains collections
+     */
+    public static @Nullable UpsertStatement of(@NotNull SessionFactory sessionFactory, @NotNull Class<?> type) {
+        SessionFactoryImplementor factory = sessionFactory.unwrap(SessionFactoryImplementor.class);
+        EntityPersister persister = factory.getMetamodel().entityPersister(type);
+        // Generated ids (e.g. identity columns or sequences) are only known after the insert
+        if (!(persister.getIdentifierGenerator() instanceof Assigned)) {
+            return null;
+        }
+        if (!(persister instanceof SingleTableEntityPersister) || persister.isVersioned()) {
+            return null;
+        }
+        SingleTableEntityPersister singleTablePersister = (SingleTableEntityPersister) persister;
+        if (singleTablePersister.isInherited() || singleTablePersister.hasSubclasses()) {
+            return null;
+        }
+        for (Type propertyType : persister.getPropertyTypes()) {
+            if (propertyType.isCollectionType()) {
+                return null;
+            }
+        }
+        return new UpsertStatement(factory, singleTablePersister);
+    }
+
+    /**
+     * Upserts entities in the transaction of the given session, sending them in JDBC batches
+     *
+     * @param session   the session
+     * @param entities  the entities
+     * @param batchSize the maximum amount of entities per JDBC batch
+     */
+    public void execute(@NotNull Session session, @NotNull List<?> entities, int batchSize) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        SharedSessionContractImplementor sessionImplementor = session.unwrap(SharedSessionContractImplementor.class);
+        Type identifierType = this.persister.getIdentifierType();
+        Type[] types = this.persister.getPropertyTypes();
+
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(this.sql)) {
+                for (int i = 0; i < entities.size(); i++) {
+                    Object entity = entities.get(i);
+                    Object[] values = this.persister.getPropertyValues(entity);
+
+                    int index = 1;
+                    identifierType.nullSafeSet(statement, this.persister.getIdentifier(entity, sessionImplementor), index, sessionImplementor);
+                    index += identifierType.getColumnSpan(this.sessionFactory);
+                    for (int property : this.properties) {
+                        types[property].nullSafeSet(statement, values[property], index, sessionImplementor);
+                        index += types[property].getColumnSpan(this.sessionFactory);
+                    }
+
+                    if (entities.size() == 1) {
+                        statement.executeUpdate();
+                        return;
+                    }
+                    statement.addBatch();
+                    if ((i + 1) % batchSize == 0 || i == entities.size() - 1) {
+                        statement.executeBatch();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the generated SQL
+     *
+     * @return the SQL
+     */
+    public String getSql() {
+        return this.sql;
+    }
+}
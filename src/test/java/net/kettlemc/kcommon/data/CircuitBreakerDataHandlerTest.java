@@ -0,0 +1,237 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerDataHandlerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final FakeDataHandler delegate = new FakeDataHandler();
+    private final AtomicBoolean healthy = new AtomicBoolean(false);
+    private CircuitBreakerDataHandler<Profile> breaker;
+
+    @AfterEach
+    void tearDown() {
+        if (this.breaker != null) {
+            this.breaker.close();
+        }
+    }
+
+    private CircuitBreakerDataHandler<Profile> start(int failureThreshold) {
+        this.breaker = new CircuitBreakerDataHandler<>(this.delegate, profile -> profile.id, this.healthy::get,
+                failureThreshold, 10, 40, TimeUnit.MILLISECONDS);
+        return this.breaker;
+    }
+
+    private void open() {
+        this.delegate.available = false;
+        for (int i = 0; i < this.breaker.failureThreshold; i++) {
+            this.breaker.load("unavailable", false);
+        }
+        assertEquals(CircuitBreakerDataHandler.State.OPEN, this.breaker.getState());
+    }
+
+    private void recover() throws InterruptedException {
+        this.delegate.available = true;
+        this.healthy.set(true);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (this.breaker.getState() != CircuitBreakerDataHandler.State.CLOSED) {
+            assertTrue(System.nanoTime() < deadline, "Circuit breaker did not close in time");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        start(3);
+        this.delegate.available = false;
+        this.breaker.load("a", false);
+        this.breaker.load("a", false);
+        assertEquals(CircuitBreakerDataHandler.State.CLOSED, this.breaker.getState());
+        this.breaker.load("a", false);
+        assertEquals(CircuitBreakerDataHandler.State.OPEN, this.breaker.getState());
+    }
+
+    @Test
+    void successResetsTheFailures() {
+        start(2);
+        this.delegate.available = false;
+        this.breaker.load("a", false);
+        this.delegate.available = true;
+        this.breaker.load("a", false);
+        this.delegate.available = false;
+        this.breaker.load("a", false);
+        assertEquals(CircuitBreakerDataHandler.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    void openCircuitFailsLoadsFast() {
+        start(1);
+        open();
+        int calls = this.delegate.calls;
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> this.breaker.load("a", false).get());
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+        assertEquals(calls, this.delegate.calls);
+    }
+
+    @Test
+    void openCircuitServesLoadsFromTheFallback() throws Exception {
+        start(1).setFallback(id -> id.equals("cached") ? new Profile(id, 7) : null);
+        open();
+
+        assertEquals(7, this.breaker.load("cached", false).get().value);
+        assertThrows(ExecutionException.class, () -> this.breaker.load("missing", false).get());
+    }
+
+    @Test
+    void openCircuitBuffersTheLatestSave() throws Exception {
+        start(1);
+        open();
+
+        CompletableFuture<Profile> first = this.breaker.save(new Profile("a", 1));
+        CompletableFuture<Profile> second = this.breaker.save(new Profile("a", 2));
+        this.breaker.save(new Profile("b", 1));
+        assertEquals(2, this.breaker.getBufferSize());
+        assertFalse(first.isDone());
+        // Buffered saves are newer than the database
+        assertEquals(2, this.breaker.load("a", false).get().value);
+
+        recover();
+        first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a=2", "b=1"), this.delegate.saved);
+        assertEquals(0, this.breaker.getBufferSize());
+    }
+
+    @Test
+    void lateFailureDoesNotReplaceANewerBufferedSave() throws Exception {
+        start(1);
+        this.delegate.hold = true;
+        CompletableFuture<Profile> older = this.breaker.save(new Profile("a", 1));
+        this.delegate.hold = false;
+        open();
+        CompletableFuture<Profile> newer = this.breaker.save(new Profile("a", 2));
+
+        this.delegate.held.remove().completeExceptionally(new IllegalStateException("Connection timed out"));
+        assertEquals(2, this.breaker.load("a", false).get().value);
+
+        recover();
+        older.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        newer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("a=2"), this.delegate.saved);
+    }
+
+    @Test
+    void failedReplayOpensTheCircuitAgain() throws Exception {
+        start(1);
+        open();
+        CompletableFuture<Profile> save = this.breaker.save(new Profile("a", 1));
+        int calls = this.delegate.calls;
+
+        // The health check succeeds, but the database fails again during the replay
+        this.healthy.set(true);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (this.delegate.calls == calls || this.breaker.getState() != CircuitBreakerDataHandler.State.OPEN) {
+            assertTrue(System.nanoTime() < deadline, "Replay was not attempted in time");
+            Thread.sleep(5);
+        }
+        this.healthy.set(false);
+        // Let a replay started by another probe in the meantime fail as well
+        Thread.sleep(100);
+        assertEquals(CircuitBreakerDataHandler.State.OPEN, this.breaker.getState());
+        assertFalse(save.isDone());
+        assertEquals(1, this.breaker.getBufferSize());
+
+        recover();
+        save.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("a=1"), this.delegate.saved);
+    }
+
+    private static final class Profile {
+
+        private final String id;
+        private final int value;
+
+        private Profile(String id, int value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A data handler whose database can be made unavailable and whose saves can be held back
+     */
+    private static final class FakeDataHandler implements DataHandler<Profile> {
+
+        private final List<String> saved = Collections.synchronizedList(new ArrayList<>());
+        private final Queue<CompletableFuture<Profile>> held = new ArrayDeque<>();
+        private volatile boolean available = true;
+        private volatile boolean hold;
+        private volatile int calls;
+
+        private <V> CompletableFuture<V> call(V value) {
+            this.calls++;
+            CompletableFuture<V> future = new CompletableFuture<>();
+            if (this.available) {
+                future.complete(value);
+            } else {
+                future.completeExceptionally(new IllegalStateException("Database unavailable"));
+            }
+            return future;
+        }
+
+        @Override
+        public CompletableFuture<Profile> save(@NotNull Profile entity) {
+            if (this.hold) {
+                CompletableFuture<Profile> future = new CompletableFuture<>();
+                this.held.add(future);
+                return future;
+            }
+            CompletableFuture<Profile> future = call(entity);
+            if (!future.isCompletedExceptionally()) {
+                this.saved.add(entity.id + "=" + entity.value);
+            }
+            return future;
+        }
+
+        @Override
+        public CompletableFuture<Profile> load(@NotNull String uuid) {
+            return load(uuid, true);
+        }
+
+        @Override
+        public CompletableFuture<Profile> load(@NotNull String uuid, boolean createIfNotExists) {
+            return call(new Profile(uuid, 0));
+        }
+
+        @Override
+        public CompletableFuture<List<Profile>> loadAll() {
+            return call(new ArrayList<>());
+        }
+
+        @Override
+        public boolean initialize() {
+            return true;
+        }
+
+        @Override
+        public boolean initialized() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
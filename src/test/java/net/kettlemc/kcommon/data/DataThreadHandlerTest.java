@@ -0,0 +1,291 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataThreadHandlerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private DataThreadHandler handler;
+
+    @AfterEach
+    void tearDown() {
+        this.release.countDown();
+        if (this.handler != null) {
+            try {
+                this.handler.shutdown(1, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (IllegalStateException ignored) {
+                // Already shut down by the test
+            }
+        }
+    }
+
+    private DataThreadHandler start(int workers) {
+        this.handler = new DataThreadHandler(workers);
+        this.handler.init();
+        return this.handler;
+    }
+
+    /**
+     * Occupies the worker of a key until {@link #release} is counted down, so the following tasks stay queued
+     */
+    private void blockWorker(String key) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        this.handler.queue(key, () -> {
+            started.countDown();
+            await(this.release);
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private Runnable record(String name) {
+        return () -> this.executed.add(name);
+    }
+
+    private void awaitExecuted(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (this.executed.size() < count) {
+            assertTrue(System.nanoTime() < deadline, "Tasks were not executed in time: " + this.executed);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        boolean interrupted = false;
+        while (latch.getCount() > 0 && System.nanoTime() < deadline) {
+            try {
+                latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void tasksWithTheSameKeyRunInOrder() throws InterruptedException {
+        start(4);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            this.handler.queue("key", record(String.valueOf(i)));
+            expected.add(String.valueOf(i));
+        }
+        awaitExecuted(expected.size());
+        assertEquals(expected, this.executed);
+    }
+
+    @Test
+    void higherPriorityRunsFirst() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        this.handler.queue("a", DataThreadHandler.Priority.LOW, record("low"));
+        this.handler.queue("b", DataThreadHandler.Priority.NORMAL, record("normal"));
+        this.handler.queue("c", DataThreadHandler.Priority.HIGH, record("high"));
+        this.release.countDown();
+
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("high", "normal", "low"), this.executed);
+    }
+
+    @Test
+    void higherPriorityDoesNotOvertakeEarlierTaskWithTheSameKey() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        this.handler.queue("key", DataThreadHandler.Priority.LOW, record("save"));
+        this.handler.queue("key", DataThreadHandler.Priority.HIGH, record("load"));
+        this.handler.queue("other", DataThreadHandler.Priority.HIGH, record("other"));
+        this.release.countDown();
+
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("other", "save", "load"), this.executed);
+    }
+
+    @Test
+    void taskWithMultipleKeysKeepsTheOrderOfEveryKey() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        this.handler.queue("a", DataThreadHandler.Priority.LOW, record("a"));
+        this.handler.queue(Arrays.asList("a", "b"), DataThreadHandler.Priority.HIGH, record("ab"));
+        this.handler.queue("b", DataThreadHandler.Priority.HIGH, record("b"));
+        this.handler.queue("c", DataThreadHandler.Priority.NORMAL, record("c"));
+        this.release.countDown();
+
+        awaitExecuted(4);
+        assertEquals(Arrays.asList("c", "a", "ab", "b"), this.executed);
+    }
+
+    @Test
+    void taskWithMultipleKeysRequiresTheSameWorker() {
+        start(2);
+        String first = "key";
+        String second = "key";
+        for (int i = 0; this.handler.getWorker(second) == this.handler.getWorker(first); i++) {
+            second = "key" + i;
+        }
+        List<String> keys = Arrays.asList(first, second);
+        assertThrows(IllegalArgumentException.class, () -> this.handler.queue(keys, DataThreadHandler.Priority.NORMAL, record("both")));
+    }
+
+    @Test
+    void queueSizeCountsWaitingTasks() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        this.handler.queue("a", record("a"));
+        this.handler.queue("b", record("b"));
+        this.handler.queue(record("c"));
+        assertEquals(3, this.handler.getQueueSize());
+
+        this.release.countDown();
+        awaitExecuted(3);
+        assertEquals(0, this.handler.getQueueSize());
+    }
+
+    @Test
+    void rejectPolicyThrowsIfTheQueueIsFull() throws InterruptedException {
+        this.handler = new DataThreadHandler(1);
+        this.handler.setCapacity(1, DataThreadHandler.OverloadPolicy.REJECT);
+        this.handler.init();
+        blockWorker("blocker");
+
+        this.handler.queue("a", record("a"));
+        assertThrows(RejectedExecutionException.class, () -> this.handler.queue("b", record("b")));
+
+        this.release.countDown();
+        awaitExecuted(1);
+        this.handler.queue("b", record("b"));
+        awaitExecuted(2);
+    }
+
+    @Test
+    void workerDoesNotBlockOnAFullQueue() throws InterruptedException {
+        this.handler = new DataThreadHandler(1);
+        this.handler.setCapacity(1, DataThreadHandler.OverloadPolicy.BLOCK);
+        this.handler.init();
+
+        // A callback queueing follow-up tasks on the worker would wait for itself if workers blocked
+        this.handler.queue("key", () -> {
+            for (int i = 0; i < 3; i++) {
+                this.handler.queue("key", record(String.valueOf(i)));
+            }
+        });
+        awaitExecuted(3);
+        assertEquals(Arrays.asList("0", "1", "2"), this.executed);
+    }
+
+    @Test
+    void shutdownExecutesQueuedTasksInOrder() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        for (int i = 0; i < 10; i++) {
+            this.handler.queue("key", record(String.valueOf(i)));
+        }
+        this.release.countDown();
+
+        Set<String> lost = this.handler.shutdown(2, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(lost.isEmpty());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), this.executed);
+    }
+
+    @Test
+    void shutdownDropsTasksAfterTheDeadline() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        CompletableFuture<Void> save = new CompletableFuture<>();
+        this.handler.queue("save", new DataThreadHandler.DroppableTask() {
+            @Override
+            public void run() {
+                save.complete(null);
+            }
+
+            @Override
+            public @NotNull Collection<String> drop(@NotNull Throwable cause) {
+                save.completeExceptionally(cause);
+                return Arrays.asList("first", "second");
+            }
+        });
+        this.handler.queue("load", new DataThreadHandler.DroppableTask() {
+            @Override
+            public void run() {
+            }
+
+            @Override
+            public @NotNull Collection<String> drop(@NotNull Throwable cause) {
+                return Collections.emptyList();
+            }
+        });
+        this.handler.queue("unknown", record("unknown"));
+
+        Set<String> lost = this.handler.shutdown(1, 50, TimeUnit.MILLISECONDS);
+        assertEquals(new LinkedHashSet<>(Arrays.asList("first", "second", "unknown")), lost);
+        assertTrue(save.isCompletedExceptionally());
+        assertTrue(this.executed.isEmpty());
+    }
+
+    @Test
+    void shutdownDoesNotDropTasksRunningAtTheDeadline() throws InterruptedException {
+        start(1);
+        blockWorker("blocker");
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<Void> slow = new CompletableFuture<>();
+        this.handler.queue("key", new DataThreadHandler.DroppableTask() {
+            @Override
+            public void run() {
+                running.countDown();
+                // Like a JDBC call, the task can't be interrupted
+                awaitUninterruptibly(finish);
+                slow.complete(null);
+            }
+
+            @Override
+            public @NotNull Collection<String> drop(@NotNull Throwable cause) {
+                slow.completeExceptionally(cause);
+                return Collections.singletonList("slow");
+            }
+        });
+        this.handler.queue("key", record("after"));
+
+        // The blocked worker finishes its task shortly after the shutdown started
+        new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+                // Released right away
+            }
+            this.release.countDown();
+        }).start();
+        Set<String> lost = this.handler.shutdown(2, 500, TimeUnit.MILLISECONDS);
+        assertTrue(running.await(0, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton("key"), lost);
+        assertFalse(slow.isDone());
+        assertFalse(this.handler.awaitTermination(10, TimeUnit.MILLISECONDS));
+
+        finish.countDown();
+        assertTrue(this.handler.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(slow.isDone() && !slow.isCompletedExceptionally());
+        assertTrue(this.executed.isEmpty());
+    }
+}
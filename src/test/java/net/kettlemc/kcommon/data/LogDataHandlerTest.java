@@ -0,0 +1,173 @@
+package net.kettlemc.kcommon.data;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogDataHandlerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+    // Every record of an entity with a single character id and a value below 10 takes 14 bytes
+    private static final int RECORD_SIZE = 14;
+
+    @TempDir
+    File directory;
+
+    private LogDataHandler<String> handler;
+
+    @AfterEach
+    void tearDown() {
+        if (this.handler != null && this.handler.initialized()) {
+            this.handler.close();
+        }
+    }
+
+    /**
+     * Opens a handler for entities like "a=1", where "a" is the id
+     */
+    private LogDataHandler<String> open(int segmentSize) {
+        if (this.handler != null && this.handler.initialized()) {
+            this.handler.close();
+        }
+        this.handler = new LogDataHandler<>(this.directory, entity -> entity.substring(0, entity.indexOf('=')), id -> null, new EntitySerializer<String>() {
+            @Override
+            public byte[] serialize(@NotNull String entity) {
+                return entity.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                return new String(data, StandardCharsets.UTF_8);
+            }
+        }, segmentSize);
+        assertTrue(this.handler.initialize());
+        return this.handler;
+    }
+
+    private void save(String... entities) throws Exception {
+        for (String entity : entities) {
+            this.handler.save(entity).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private String load(String id) throws Exception {
+        return this.handler.load(id, false).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private File[] segments() {
+        File[] segments = this.directory.listFiles((dir, name) -> name.endsWith(".log"));
+        return segments != null ? segments : new File[0];
+    }
+
+    @Test
+    void newestVersionWinsAfterRolling() throws Exception {
+        // Two records per segment
+        open(2 * RECORD_SIZE);
+        save("a=1", "b=1", "a=2", "a=3", "b=2");
+        assertEquals(3, segments().length);
+        assertEquals("a=3", load("a"));
+
+        open(2 * RECORD_SIZE);
+        assertEquals(2, this.handler.size());
+        assertEquals("a=3", load("a"));
+        assertEquals("b=2", load("b"));
+    }
+
+    @Test
+    void recoveryStopsAtACorruptRecord() throws Exception {
+        open(1024);
+        save("a=1", "b=1");
+        this.handler.close();
+
+        // Flip the last byte of the second record, its checksum doesn't match anymore
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.seek(2 * RECORD_SIZE - 1);
+            file.write('2');
+        }
+
+        open(1024);
+        assertEquals("a=1", load("a"));
+        assertNull(load("b"));
+
+        // New records overwrite the corrupt one
+        save("c=1");
+        open(1024);
+        assertEquals("a=1", load("a"));
+        assertNull(load("b"));
+        assertEquals("c=1", load("c"));
+    }
+
+    @Test
+    void compactionMovesLiveRecordsAndDeletesOutdatedSegments() throws Exception {
+        // Three records per segment
+        open(3 * RECORD_SIZE);
+        save("b=1", "a=1", "a=2", "a=3", "a=4", "a=5", "a=6");
+        assertEquals(3, segments().length);
+
+        this.handler.compact();
+        File[] segments = segments();
+        assertEquals(1, segments.length);
+        assertTrue(segments[0].getName().endsWith("2.log"));
+        assertEquals("a=6", load("a"));
+        assertEquals("b=1", load("b"));
+
+        open(3 * RECORD_SIZE);
+        assertEquals(2, this.handler.size());
+        assertEquals("a=6", load("a"));
+        assertEquals("b=1", load("b"));
+    }
+
+    @Test
+    void compactionKeepsMostlyLiveSegments() throws Exception {
+        open(3 * RECORD_SIZE);
+        save("a=1", "b=1", "c=1", "a=2");
+
+        this.handler.compact();
+        assertEquals(2, segments().length);
+        assertEquals("b=1", load("b"));
+    }
+
+    @Test
+    void initializingAgainKeepsTheData() throws Exception {
+        LogDataHandler<String> handler = open(2 * RECORD_SIZE);
+        save("a=1", "b=1", "a=2");
+        handler.close();
+
+        assertTrue(handler.initialize());
+        assertEquals(2, handler.size());
+        assertEquals("a=2", load("a"));
+        assertEquals("b=1", load("b"));
+
+        save("b=2");
+        handler.compact();
+        // The first segment only contained outdated versions
+        assertEquals(1, segments().length);
+        assertEquals("b=2", load("b"));
+    }
+
+    @Test
+    void initializingAgainRebuildsTheIndex() throws Exception {
+        LogDataHandler<String> handler = open(2 * RECORD_SIZE);
+        save("a=1", "b=1", "a=2");
+        handler.close();
+
+        // The segments are replaced while the handler is closed, e.g. by restoring a backup
+        for (File segment : segments()) {
+            assertTrue(segment.delete());
+        }
+
+        assertTrue(handler.initialize());
+        assertEquals(0, handler.size());
+        assertNull(load("a"));
+        save("b=2");
+        assertEquals("b=2", load("b"));
+    }
+}
@@ -0,0 +1,138 @@
+package net.kettlemc.kcommon.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaveJournalTest {
+
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    @TempDir
+    File directory;
+
+    private SaveJournal open(long segmentSize) throws IOException {
+        SaveJournal journal = new SaveJournal(this.directory, SYNC_INTERVAL_MILLIS, segmentSize);
+        assertTrue(journal.recover().isEmpty());
+        return journal;
+    }
+
+    private Map<String, String> recover() throws IOException {
+        try (SaveJournal journal = new SaveJournal(this.directory, SYNC_INTERVAL_MILLIS, SEGMENT_SIZE)) {
+            return decode(journal.recover());
+        }
+    }
+
+    private File[] segments() {
+        File[] segments = this.directory.listFiles((dir, name) -> name.endsWith(".log"));
+        return segments != null ? segments : new File[0];
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> decode(Map<String, byte[]> saves) {
+        Map<String, String> decoded = new LinkedHashMap<>();
+        saves.forEach((id, payload) -> decoded.put(id, new String(payload, StandardCharsets.UTF_8)));
+        return decoded;
+    }
+
+    @Test
+    void recoverReturnsTheLatestUncommittedSaves() throws IOException {
+        try (SaveJournal journal = open(SEGMENT_SIZE)) {
+            journal.append("a", bytes("a1"));
+            SaveJournal.Entry b = journal.append("b", bytes("b1"));
+            journal.append("c", bytes("c1"));
+            journal.append("a", bytes("a2"));
+            journal.commit(b);
+        }
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("c", "c1");
+        expected.put("a", "a2");
+        assertEquals(expected, recover());
+    }
+
+    @Test
+    void committedSavesAreNotReplayed() throws IOException {
+        try (SaveJournal journal = open(SEGMENT_SIZE)) {
+            journal.commit(journal.append("a", bytes("a1")));
+            journal.commit(journal.append("b", bytes("b1")));
+        }
+        assertEquals(0, segments().length);
+        assertTrue(recover().isEmpty());
+    }
+
+    @Test
+    void committingAnOlderSaveKeepsTheNewerOne() throws IOException {
+        try (SaveJournal journal = open(SEGMENT_SIZE)) {
+            SaveJournal.Entry older = journal.append("a", bytes("a1"));
+            journal.append("a", bytes("a2"));
+            journal.commit(older);
+        }
+        assertEquals(Collections.singletonMap("a", "a2"), recover());
+    }
+
+    @Test
+    void recoveredSavesAreReplayedUntilCommitted() throws IOException {
+        try (SaveJournal journal = open(SEGMENT_SIZE)) {
+            journal.append("a", bytes("a1"));
+            journal.append("b", bytes("b1"));
+        }
+        // Not committed, e.g. because the database was still unavailable
+        assertEquals(2, recover().size());
+
+        try (SaveJournal journal = new SaveJournal(this.directory, SYNC_INTERVAL_MILLIS, SEGMENT_SIZE)) {
+            assertEquals(2, journal.recover().size());
+            journal.commitRecovered("a");
+        }
+        assertEquals(Collections.singletonMap("b", "b1"), recover());
+    }
+
+    @Test
+    void segmentsAreDeletedInOrderOnceCommitted() throws IOException {
+        // Every record starts a new segment
+        try (SaveJournal journal = open(1)) {
+            SaveJournal.Entry first = journal.append("a", bytes("a1"));
+            SaveJournal.Entry second = journal.append("b", bytes("b1"));
+            SaveJournal.Entry third = journal.append("c", bytes("c1"));
+
+            journal.commit(second);
+            assertEquals(4, segments().length);
+            journal.commit(first);
+            journal.commit(third);
+            assertEquals(1, segments().length);
+        }
+        assertEquals(0, segments().length);
+    }
+
+    @Test
+    void tornRecordAtTheEndIsIgnored() throws IOException {
+        try (SaveJournal journal = open(SEGMENT_SIZE)) {
+            journal.append("a", bytes("a1"));
+            journal.append("b", bytes("b1"));
+        }
+        File[] segments = segments();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        assertEquals(Collections.singletonMap("a", "a1"), recover());
+    }
+
+    @Test
+    void appendRequiresRecovery() {
+        try (SaveJournal journal = new SaveJournal(this.directory, SYNC_INTERVAL_MILLIS, SEGMENT_SIZE)) {
+            assertThrows(IllegalStateException.class, () -> journal.append("a", bytes("a1")));
+        }
+    }
+}